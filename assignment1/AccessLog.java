@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log in the Combined Log Format.
+ * Threads that answer requests only put a record into a bounded lock-free
+ * ring buffer. A background thread takes the records out in batches,
+ * formats them and appends them to the log file with one write per batch.
+ * Once the file reaches its size limit it is rotated: access.log becomes
+ * access.log.1, access.log.1 becomes access.log.2 and so on.
+ * When the ring buffer is full a record is either dropped and counted, or
+ * the request thread waits for the writer to catch up, as configured.
+ * The size field is the number of bytes of the whole response, headers
+ * included, the way the server sends it.
+ */
+class AccessLog {
+    // the writer wakes up at least this often to write what has come in
+    static final long FLUSH_INTERVAL_MILLIS = 100;
+    // formatted records are written once a batch reaches this size
+    static final int BATCH_BYTES = 64 * 1024;
+    private static final DateTimeFormatter DATE_FORMAT =
+        DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final Path path;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final boolean blockWhenFull;
+
+    // ring buffer: a slot holds the record with sequence number n when
+    // sequences[n & mask] is n + 1, and is free for n when it is n
+    private final Record[] records;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // only advanced by the writer
+    private volatile long head = 0;
+
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private FileChannel file;
+    private long fileBytes;
+
+    /**
+     * A logged request, copied out of the request that is reused afterwards
+     */
+    static class Record {
+        final InetAddress client;
+        final long time;
+        final String requestLine;
+        final int status;
+        final long bytes;
+        final String referer;
+        final String userAgent;
+
+        Record(InetAddress client, long time, String requestLine, int status, long bytes, String referer, String userAgent) {
+            this.client = client;
+            this.time = time;
+            this.requestLine = requestLine;
+            this.status = status;
+            this.bytes = bytes;
+            this.referer = referer;
+            this.userAgent = userAgent;
+        }
+    }
+
+    /**
+     * Opens the log file and starts the writer thread
+     * @param  path the log file, appended to if it exists
+     * @param  maxFileBytes the file is rotated once it is this large
+     * @param  maxFiles rotated files kept besides the current one
+     * @param  capacity records the ring buffer holds, rounded up to a power of two
+     * @param  blockWhenFull whether a full buffer makes request threads wait instead of dropping records
+     * @throws IOException if the log file cannot be opened
+     */
+    public AccessLog(Path path, long maxFileBytes, int maxFiles, int capacity, boolean blockWhenFull) throws IOException {
+        this.path = path;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.blockWhenFull = blockWhenFull;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        records = new Record[size];
+        sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        openFile();
+        writer = new Thread(this::writeRecords, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Logs an answered request
+     * @param  client address of the client
+     * @param  request the request, null if it could not be parsed at all
+     * @param  response the response to it
+     */
+    public void log(InetAddress client, HTTPRequest request, HTTPResponse response) {
+        String requestLine = "-";
+        String referer = null;
+        String userAgent = null;
+        if(request != null && request.getMethod() != null) {
+            requestLine = request.getMethod() + " /" + request.getFilePath() + " HTTP/" + request.getVersion();
+            referer = request.getHeaderValue("referer");
+            userAgent = request.getHeaderValue("user-agent");
+        }
+        Record record = new Record(client, System.currentTimeMillis(), requestLine,
+                                   response.getStatus(), response.getLength(), referer, userAgent);
+        while(!offer(record)) {
+            if(!blockWhenFull || closed) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(50000);
+        }
+    }
+
+    /**
+     * Puts a record into the ring buffer without taking a lock
+     * @return false if the buffer is full
+     */
+    private boolean offer(Record record) {
+        while(true) {
+            long sequence = tail.get();
+            int index = (int) sequence & mask;
+            long slot = sequences.get(index);
+            if(slot == sequence) {
+                if(tail.compareAndSet(sequence, sequence + 1)) {
+                    records[index] = record;
+                    // publishes the record to the writer
+                    sequences.set(index, sequence + 1);
+                    if(sequence - head == records.length / 2) {
+                        // half full, do not wait for the flush interval
+                        LockSupport.unpark(writer);
+                    }
+                    return true;
+                }
+            } else if(slot < sequence) {
+                // the writer has not taken the record one lap ago yet
+                return false;
+            }
+            // another thread claimed this sequence number, try the next one
+        }
+    }
+
+    /**
+     * Takes the next record out of the ring buffer, only called by the writer
+     * @return the record, or null if the buffer is empty
+     */
+    private Record poll() {
+        long sequence = head;
+        int index = (int) sequence & mask;
+        if(sequences.get(index) != sequence + 1) {
+            return null;
+        }
+        Record record = records[index];
+        records[index] = null;
+        sequences.set(index, sequence + records.length);
+        head = sequence + 1;
+        return record;
+    }
+
+    private void writeRecords() {
+        StringBuilder batch = new StringBuilder(BATCH_BYTES);
+        // the date only changes once a second, so it is formatted once a second
+        long formattedSecond = -1;
+        String formattedDate = "";
+        while(true) {
+            boolean closing = closed;
+            Record record;
+            while((record = poll()) != null) {
+                long second = record.time / 1000;
+                if(second != formattedSecond) {
+                    formattedSecond = second;
+                    formattedDate = DATE_FORMAT.format(Instant.ofEpochMilli(record.time));
+                }
+                format(batch, record, formattedDate);
+                if(batch.length() >= BATCH_BYTES) {
+                    write(batch);
+                }
+            }
+            write(batch);
+            if(closing) {
+                return;
+            }
+            LockSupport.parkNanos(FLUSH_INTERVAL_MILLIS * 1000000);
+        }
+    }
+
+    private static void format(StringBuilder sb, Record record, String date) {
+        sb.append(record.client == null ? "-" : record.client.getHostAddress());
+        sb.append(" - - [").append(date).append("] \"");
+        appendEscaped(sb, record.requestLine);
+        sb.append("\" ").append(record.status).append(' ').append(record.bytes).append(" \"");
+        appendEscaped(sb, record.referer == null ? "-" : record.referer);
+        sb.append("\" \"");
+        appendEscaped(sb, record.userAgent == null ? "-" : record.userAgent);
+        sb.append("\"\n");
+    }
+
+    /**
+     * Appends a client supplied value so that it cannot break the line or the quoting
+     */
+    private static void appendEscaped(StringBuilder sb, String value) {
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if(c < 0x20 || c == 0x7f) {
+                sb.append(String.format("\\x%02x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Appends the batch to the log file, rotating the file if it is full
+     */
+    private void write(StringBuilder batch) {
+        if(batch.length() == 0) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+        batch.setLength(0);
+        try {
+            if(!file.isOpen()) {
+                // an earlier rotation could not reopen the file
+                openFile();
+            }
+            while(bytes.hasRemaining()) {
+                fileBytes += file.write(bytes);
+            }
+            if(fileBytes >= maxFileBytes) {
+                rotate();
+            }
+        } catch(IOException e) {
+            // losing log lines is better than taking the server down
+            System.err.println("Access log: " + e.getMessage());
+        }
+    }
+
+    private void rotate() throws IOException {
+        file.close();
+        try {
+            if(maxFiles > 0) {
+                for(int i = maxFiles - 1; i >= 1; i--) {
+                    Path older = Paths.get(path + "." + i);
+                    if(Files.exists(older)) {
+                        Files.move(older, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(path);
+            }
+        } finally {
+            // if a rename failed this reopens the full file, the next batch retries the rotation
+            openFile();
+        }
+    }
+
+    private void openFile() throws IOException {
+        file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = file.size();
+    }
+
+    /**
+     * Writes the records that are still buffered and closes the file
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+            file.close();
+        } catch(InterruptedException | IOException e) {
+            // shutting down anyway
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
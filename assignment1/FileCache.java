@@ -0,0 +1,290 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory cache of small static files.
+ * Every entry holds the complete response after the status line and the
+ * Connection header, i.e. the encoded headers followed by the body, so a
+ * hit is answered without touching the disk or building any strings.
+ * Besides the plain files the cache holds gzip compressed variants of
+ * compressible files, which are compressed once and served many times.
+ * The cache is bounded by the total number of bytes it holds and evicts
+ * the least recently used entries.
+ * Entries are revalidated against the size and modification time of the
+ * file, at most once per revalidation interval. Files found missing are
+ * remembered for as long, so probing for an optional file, such as the
+ * precompressed sibling of a page, does not hit the disk on every request.
+ */
+class FileCache {
+    // a compressed variant is only kept if it saves at least this fraction
+    static final double MIN_COMPRESSION_SAVINGS = 0.1;
+    // missing files remembered at most, the least recently asked for are forgotten first
+    static final int MAX_MISSING = 1024;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long revalidateMillis;
+    // access ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private long usedBytes = 0;
+    // time of the last lookup of files that did not exist, access ordered
+    private final LinkedHashMap<String, Long> missing = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_MISSING;
+        }
+    };
+    // bounds the threads that compress at the same time, the others serve the plain file
+    private final Semaphore compressions = new Semaphore(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * A cached representation of a file
+     */
+    static class Entry {
+        // headers except Connection, the empty line and the body
+        final byte[] response;
+        // index of the first body byte in response
+        final int bodyOffset;
+        // length of the body
+        final long size;
+        final long lastModified;
+        final String etag;
+        final String contentType;
+        // null for the plain file
+        final String contentEncoding;
+        // size of the file on disk, used for revalidation
+        final long fileSize;
+        // time of the last check against the file system
+        volatile long checkedAt;
+
+        Entry(byte[] response, int bodyOffset, long size, long lastModified, String etag,
+              String contentType, String contentEncoding, long fileSize, long checkedAt) {
+            this.response = response;
+            this.bodyOffset = bodyOffset;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.fileSize = fileSize;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    /**
+     * @param  maxBytes upper bound for the bytes held by all entries
+     * @param  maxEntryBytes files larger than this are never cached
+     * @param  revalidateMillis how long an entry is trusted without checking the file
+     */
+    public FileCache(long maxBytes, long maxEntryBytes, long revalidateMillis) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.revalidateMillis = revalidateMillis;
+    }
+
+    /**
+     * Looks up a file, loading it into the cache if it is missing or stale
+     * @param  path normalized absolute path of the file
+     * @param  contentType media type of the file
+     * @param  contentEncoding null to serve the file as it is, or "gzip" if
+     *         the file is a precompressed sibling of the requested one
+     * @return the cached entry, or null if the file is too large to be cached
+     * @throws IOException if the file does not exist or cannot be read
+     */
+    public Entry get(Path path, String contentType, String contentEncoding) throws IOException {
+        return get(key(path, contentEncoding), path, contentType, contentEncoding, false);
+    }
+
+    /**
+     * @param  path normalized absolute path of the file
+     * @param  contentEncoding as for get()
+     * @return true if get() found no such file within the revalidation interval
+     */
+    public synchronized boolean isMissing(Path path, String contentEncoding) {
+        String key = key(path, contentEncoding);
+        Long checkedAt = missing.get(key);
+        if(checkedAt == null) {
+            return false;
+        }
+        if(System.currentTimeMillis() - checkedAt >= revalidateMillis) {
+            missing.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    private static String key(Path path, String contentEncoding) {
+        return contentEncoding == null ? path.toString() : path + "\0" + contentEncoding;
+    }
+
+    /**
+     * Looks up the gzip compressed variant of a file, compressing the file
+     * if the variant is missing or stale. If compression does not pay off
+     * for this file, the plain file is cached under the variant instead.
+     * @param  path normalized absolute path of the file
+     * @param  contentType media type of the file
+     * @return the cached entry, or null if the file is too large to be
+     *         cached or all compression threads are busy
+     * @throws IOException if the file does not exist or cannot be read
+     */
+    public Entry getCompressed(Path path, String contentType) throws IOException {
+        return get(path + "\0gzip", path, contentType, "gzip", true);
+    }
+
+    private Entry get(String key, Path path, String contentType, String contentEncoding, boolean compress) throws IOException {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized(this) {
+            entry = entries.get(key);
+        }
+        if(entry != null && now - entry.checkedAt < revalidateMillis) {
+            hits.increment();
+            return entry;
+        }
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch(IOException e) {
+            remove(key);
+            if(e instanceof NoSuchFileException) {
+                rememberMissing(key, now);
+            }
+            throw e;
+        }
+        if(!attributes.isRegularFile()) {
+            remove(key);
+            rememberMissing(key, now);
+            throw new NoSuchFileException(path.toString());
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if(entry != null && entry.fileSize == attributes.size() && entry.lastModified == lastModified) {
+            entry.checkedAt = now;
+            hits.increment();
+            return entry;
+        }
+
+        misses.increment();
+        if(attributes.size() > maxEntryBytes) {
+            remove(key);
+            return null;
+        }
+        if(compress) {
+            // only read the file once a compression thread is free for it
+            if(!compressions.tryAcquire()) {
+                return null;
+            }
+            try {
+                byte[] body = Files.readAllBytes(path);
+                byte[] compressed = gzip(body);
+                if(compressed.length <= body.length * (1 - MIN_COMPRESSION_SAVINGS)) {
+                    entry = encode(compressed, lastModified, HTTPResponse.getETag(body.length, lastModified, "gzip"),
+                                   contentType, "gzip", body.length, now);
+                } else {
+                    entry = encode(body, lastModified, HTTPResponse.getETag(body.length, lastModified),
+                                   contentType, null, body.length, now);
+                }
+            } finally {
+                compressions.release();
+            }
+        } else {
+            byte[] body = Files.readAllBytes(path);
+            entry = encode(body, lastModified, HTTPResponse.getETag(body.length, lastModified),
+                           contentType, contentEncoding, body.length, now);
+        }
+        put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Encodes a body and its headers as a response
+     */
+    private static Entry encode(byte[] body, long lastModified, String etag, String contentType,
+                                String contentEncoding, long fileSize, long now) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Content-Length: " + body.length + "\r\n");
+        sb.append("Content-Type: " + contentType + "\r\n");
+        if(contentEncoding != null) {
+            sb.append("Content-Encoding: " + contentEncoding + "\r\n");
+        }
+        if(HTTPResponse.isCompressible(contentType)) {
+            sb.append("Vary: Accept-Encoding\r\n");
+        }
+        sb.append("ETag: " + etag + "\r\n");
+        sb.append("Last-Modified: " + HTTPResponse.formatDate(lastModified) + "\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        sb.append("\r\n");
+        byte[] head = sb.toString().getBytes();
+        byte[] response = new byte[head.length + body.length];
+        System.arraycopy(head, 0, response, 0, head.length);
+        System.arraycopy(body, 0, response, head.length, body.length);
+        return new Entry(response, head.length, body.length, lastModified, etag,
+                         contentType, contentEncoding, fileSize, now);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if(previous != null) {
+            usedBytes -= previous.response.length;
+        }
+        usedBytes += entry.response.length;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while(usedBytes > maxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            usedBytes -= evicted.response.length;
+            evictions.increment();
+        }
+    }
+
+    private synchronized void rememberMissing(String key, long now) {
+        missing.put(key, now);
+    }
+
+    private synchronized void remove(String key) {
+        Entry previous = entries.remove(key);
+        if(previous != null) {
+            usedBytes -= previous.response.length;
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
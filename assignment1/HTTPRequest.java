@@ -0,0 +1,342 @@
+class HTTPRequest {
+    // header names that are looked up by the server, shared instead of decoded per request
+    private static final String[] KNOWN_HEADERS = {
+        "host", "connection", "accept", "accept-encoding", "accept-language",
+        "user-agent", "range", "if-range", "if-none-match", "if-modified-since",
+        "cache-control", "content-length", "referer", "cookie"
+    };
+    private static final byte[][] KNOWN_HEADER_BYTES = new byte[KNOWN_HEADERS.length][];
+    static {
+        for(int i = 0; i < KNOWN_HEADERS.length; i++) {
+            KNOWN_HEADER_BYTES[i] = KNOWN_HEADERS[i].getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private String file;
+    private String method;
+    private String version;
+    private boolean isValid;
+    // the buffer the request was parsed from, headers point into it
+    private byte[] data;
+    // per header: name start, name end, value start, value end
+    private int[] headerOffsets = new int[4 * 16];
+    // per header: the shared name if it is a known header, null otherwise
+    private String[] headerNames = new String[16];
+    private int headerCount;
+
+    public String getFilePath() {
+        return file;
+    }
+    
+    public String getMethod() {
+        return method;
+    }
+    
+    public String getVersion() {
+        return version;
+    }
+
+    public boolean isValid() {
+        return isValid;
+    }
+
+    /**
+     * Decides whether the client wants to keep the connection open:
+     * HTTP/1.1 does unless it sends "Connection: close",
+     * HTTP/1.0 only if it sends "Connection: keep-alive"
+     * @return true if the connection should stay open after the response
+     */
+    public boolean isPersistent() {
+        if(version == "1.1") {
+            return !hasHeaderToken("connection", "close");
+        }
+        return hasHeaderToken("connection", "keep-alive");
+    }
+
+    /**
+     * Checks if a comma separated header value contains a token, ignoring case
+     * @param  headerName lower case name of the header
+     * @param  token lower case token
+     * @return true if the header is present and lists the token
+     */
+    public boolean hasHeaderToken(String headerName, String token) {
+        int header = headerIndex(headerName);
+        if(header < 0) {
+            return false;
+        }
+        int end = headerOffsets[4 * header + 3];
+        int start = headerOffsets[4 * header + 2];
+        while(start < end) {
+            int tokenEnd = indexOf(data, start, end, (byte) ',');
+            if(tokenEnd < 0) {
+                tokenEnd = end;
+            }
+            int next = tokenEnd + 1;
+            while(start < tokenEnd && isWhitespace(data[start])) {
+                start++;
+            }
+            while(tokenEnd > start && isWhitespace(data[tokenEnd - 1])) {
+                tokenEnd--;
+            }
+            if(tokenEnd - start == token.length()) {
+                int i = 0;
+                while(i < token.length() && toLowerCase(data[start + i]) == token.charAt(i)) {
+                    i++;
+                }
+                if(i == token.length()) {
+                    return true;
+                }
+            }
+            start = next;
+        }
+        return false;
+    }
+    
+    /**
+     * Looks up the value of a header
+     * @param  headerName lower case name of the header
+     * @return the value without surrounding whitespace, or null if the header is missing
+     */
+    public String getHeaderValue(String headerName) {
+        for(int i = 0; i < headerCount; i++) {
+            if(headerNames[i] != null ? headerNames[i].equals(headerName) : nameEquals(i, headerName)) {
+                int start = headerOffsets[4 * i + 2];
+                return new String(data, start, headerOffsets[4 * i + 3] - start, java.nio.charset.StandardCharsets.ISO_8859_1);
+            }
+        }
+        return null;
+    }
+    
+    public HTTPRequest() {
+        reset();
+    }
+
+    /**
+     * Forgets the previously parsed request so that the object can be reused
+     */
+    private void reset() {
+        file = null;
+        method = null;
+        //default value in case no HTTP version provided
+        version = "1.1";
+        isValid = false;
+        data = null;
+        headerCount = 0;
+    }
+    
+    /**
+     * Parses a request and set all the private variables
+     * @param  request the lines of the request head, separated by newlines
+     * @return returns true if parsing was successful
+     */
+    public boolean parseRequest(String request) {
+        byte[] head = (request.endsWith("\n") ? request + "\n" : request + "\n\n").getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+        parse(head, 0, head.length);
+        return isValid;
+    }
+
+    /**
+     * Parses a request head straight from received bytes and sets all the
+     * private variables. Nothing is copied: the header names and values are
+     * kept as offsets into the buffer, which therefore must not be changed
+     * while the request is in use. Lines may end with CRLF or LF.
+     * @param  buffer bytes received from the client
+     * @param  start index of the first byte of the request
+     * @param  end index behind the last received byte
+     * @return the index behind the empty line that ends the head, or -1 if
+     *         the head is not complete yet. Use isValid() to find out whether
+     *         a complete head was a valid request.
+     */
+    public int parse(byte[] buffer, int start, int end) {
+        reset();
+        data = buffer;
+        // tolerate empty lines in front of the request line
+        while(start < end && (buffer[start] == '\r' || buffer[start] == '\n')) {
+            start++;
+        }
+        boolean isValidRequest = true;
+        boolean isRequestLine = true;
+        int lineStart = start;
+        for(int i = start; i < end; i++) {
+            if(buffer[i] != '\n') {
+                continue;
+            }
+            int lineEnd = i > lineStart && buffer[i - 1] == '\r' ? i - 1 : i;
+            if(isRequestLine) {
+                isValidRequest = parseRequestLine(buffer, lineStart, lineEnd);
+                isRequestLine = false;
+            } else if(lineEnd == lineStart) {
+                //only support GET request, HTTP/1.1 needs a host
+                if(headerIndex("host") < 0 && version == "1.1") {
+                    isValidRequest = false;
+                }
+                isValid = isValidRequest;
+                return i + 1;
+            } else if(!parseHeaderLine(buffer, lineStart, lineEnd)) {
+                isValidRequest = false;
+            }
+            lineStart = i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses "METHOD target HTTP/x.y"
+     * @return true if the request line is valid
+     */
+    private boolean parseRequestLine(byte[] buffer, int start, int end) {
+        int firstSpace = indexOf(buffer, start, end, (byte) ' ');
+        int lastSpace = lastIndexOf(buffer, start, end, (byte) ' ');
+        boolean isValidRequest = true;
+
+        //get HTTP version
+        int versionStart = lastSpace + 1;
+        if(end - versionStart == 8 && regionEquals(buffer, versionStart, "HTTP/1.")) {
+            if(buffer[versionStart + 7] == '0') {
+                version = "1.0";
+            } else if(buffer[versionStart + 7] == '1') {
+                version = "1.1";
+            } else {
+                isValidRequest = false;
+            }
+        } else {
+            isValidRequest = false;
+        }
+
+        //exactly three words separated by single spaces
+        if(firstSpace < 0 || firstSpace == lastSpace
+                || indexOf(buffer, firstSpace + 1, lastSpace, (byte) ' ') >= 0
+                || firstSpace == start || lastSpace == firstSpace + 1) {
+            return false;
+        }
+        //only support GET request
+        if(firstSpace - start == 3 && regionEquals(buffer, start, "GET")) {
+            method = "GET";
+        } else {
+            isValidRequest = false;
+        }
+        file = new String(buffer, firstSpace + 2, lastSpace - firstSpace - 2, java.nio.charset.StandardCharsets.ISO_8859_1);
+        return isValidRequest;
+    }
+
+    /**
+     * Parses "name: value". Only the first colon separates the name,
+     * so values like "localhost:8080" stay intact.
+     * @return true if the line is a valid header
+     */
+    private boolean parseHeaderLine(byte[] buffer, int start, int end) {
+        int colon = indexOf(buffer, start, end, (byte) ':');
+        if(colon <= start) {
+            return false;
+        }
+        int nameEnd = colon;
+        while(nameEnd > start && isWhitespace(buffer[nameEnd - 1])) {
+            nameEnd--;
+        }
+        int valueStart = colon + 1;
+        while(valueStart < end && isWhitespace(buffer[valueStart])) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while(valueEnd > valueStart && isWhitespace(buffer[valueEnd - 1])) {
+            valueEnd--;
+        }
+        if(headerCount == headerNames.length) {
+            headerNames = java.util.Arrays.copyOf(headerNames, 2 * headerCount);
+            headerOffsets = java.util.Arrays.copyOf(headerOffsets, 8 * headerCount);
+        }
+        int[] offsets = headerOffsets;
+        offsets[4 * headerCount] = start;
+        offsets[4 * headerCount + 1] = nameEnd;
+        offsets[4 * headerCount + 2] = valueStart;
+        offsets[4 * headerCount + 3] = valueEnd;
+        headerNames[headerCount] = knownName(buffer, start, nameEnd);
+        headerCount++;
+        return true;
+    }
+
+    /**
+     * @return index of the header with the given lower case name, or -1
+     */
+    private int headerIndex(String headerName) {
+        for(int i = 0; i < headerCount; i++) {
+            if(headerNames[i] != null ? headerNames[i].equals(headerName) : nameEquals(i, headerName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the name of a header with a lower case name, ignoring case
+     */
+    private boolean nameEquals(int header, String name) {
+        int start = headerOffsets[4 * header];
+        int length = headerOffsets[4 * header + 1] - start;
+        if(length != name.length()) {
+            return false;
+        }
+        for(int i = 0; i < length; i++) {
+            if(toLowerCase(data[start + i]) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the shared name of a known header, or null
+     */
+    private static String knownName(byte[] buffer, int start, int end) {
+        for(int k = 0; k < KNOWN_HEADER_BYTES.length; k++) {
+            byte[] name = KNOWN_HEADER_BYTES[k];
+            if(name.length != end - start) {
+                continue;
+            }
+            int i = 0;
+            while(i < name.length && toLowerCase(buffer[start + i]) == name[i]) {
+                i++;
+            }
+            if(i == name.length) {
+                return KNOWN_HEADERS[k];
+            }
+        }
+        return null;
+    }
+
+    private static boolean regionEquals(byte[] buffer, int start, String ascii) {
+        for(int i = 0; i < ascii.length(); i++) {
+            if(buffer[start + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] buffer, int start, int end, byte b) {
+        for(int i = start; i < end; i++) {
+            if(buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] buffer, int start, int end, byte b) {
+        for(int i = end - 1; i >= start; i--) {
+            if(buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+    }
+
+}
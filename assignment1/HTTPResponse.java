@@ -0,0 +1,337 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A response that is ready to be written: the encoded status line and
+ * headers followed by any number of body parts. File parts are sent with
+ * FileChannel.transferTo, so the body never has to be copied onto the heap.
+ */
+class HTTPResponse {
+    private static final HashMap<String, String> CONTENT_TYPES = new HashMap<String, String>();
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+        CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+        CONTENT_TYPES.put("csv", "text/csv; charset=utf-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("xml", "application/xml");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("webp", "image/webp");
+        CONTENT_TYPES.put("pdf", "application/pdf");
+        CONTENT_TYPES.put("zip", "application/zip");
+        CONTENT_TYPES.put("gz", "application/gzip");
+        CONTENT_TYPES.put("mp4", "video/mp4");
+        CONTENT_TYPES.put("mp3", "audio/mpeg");
+    }
+
+    private final ArrayList<Part> parts = new ArrayList<Part>();
+    // index of the part that is written next
+    private int current = 0;
+    private final int status;
+    // bytes of all parts together
+    private long length = 0;
+    // System.nanoTime() when the request was received, for the response latency
+    private long receivedNanos = System.nanoTime();
+
+    /**
+     * Creates a response that consists of the given bytes only
+     * @param  status the status code in the head
+     * @param  head status line, headers and possibly an inlined body
+     */
+    public HTTPResponse(int status, byte[] head) {
+        this.status = status;
+        addBody(ByteBuffer.wrap(head));
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the number of bytes the whole response takes on the wire
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * @param  receivedNanos System.nanoTime() when the request was received,
+     *         defaults to the time the response was created
+     */
+    public void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * Appends bytes to the response
+     * @param  buffer the bytes between position and limit are sent
+     */
+    public void addBody(ByteBuffer buffer) {
+        addBody(buffer, null);
+    }
+
+    /**
+     * Appends bytes that belong to a shared resource to the response
+     * @param  buffer the bytes between position and limit are sent
+     * @param  onRelease run once the bytes are written or the response is dropped
+     */
+    public void addBody(ByteBuffer buffer, Runnable onRelease) {
+        parts.add(new BufferPart(buffer, onRelease));
+        length += buffer.remaining();
+    }
+
+    /**
+     * Appends a region of a file to the response
+     * @param  file an open file, closed when the response is released
+     * @param  position offset of the first byte to send
+     * @param  count number of bytes to send
+     */
+    public void addBody(FileChannel file, long position, long count) {
+        addBody(file, position, count, true);
+    }
+
+    /**
+     * Appends a region of a file to the response
+     * @param  file an open file
+     * @param  position offset of the first byte to send
+     * @param  count number of bytes to send
+     * @param  close whether releasing this part closes the file, false
+     *         for all but the last of several regions of the same file
+     */
+    public void addBody(FileChannel file, long position, long count, boolean close) {
+        parts.add(new FilePart(file, position, count, close));
+        length += count;
+    }
+
+    /**
+     * Writes as much of the response as the channel accepts
+     * @param  channel the connection to the client
+     * @return true if the whole response has been written
+     * @throws IOException
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while(current < parts.size()) {
+            if(channel instanceof GatheringByteChannel && parts.get(current) instanceof BufferPart) {
+                if(!writeBuffers((GatheringByteChannel) channel)) {
+                    return false;
+                }
+                continue;
+            }
+            if(!parts.get(current).writeTo(channel)) {
+                return false;
+            }
+            parts.get(current).release();
+            current++;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the run of buffer parts starting at the current part with as
+     * few system calls as possible, e.g. a status line and a cached body
+     * @return true if all of these parts have been written
+     */
+    private boolean writeBuffers(GatheringByteChannel channel) throws IOException {
+        int end = current;
+        while(end < parts.size() && parts.get(end) instanceof BufferPart) {
+            end++;
+        }
+        if(end - current == 1) {
+            if(!parts.get(current).writeTo(channel)) {
+                return false;
+            }
+            parts.get(current).release();
+            current++;
+            return true;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[end - current];
+        long remaining = 0;
+        for(int i = 0; i < buffers.length; i++) {
+            buffers[i] = ((BufferPart) parts.get(current + i)).buffer;
+            remaining += buffers[i].remaining();
+        }
+        while(remaining > 0) {
+            long written = channel.write(buffers);
+            if(written == 0) {
+                // skip the parts that made it out completely
+                while(!((BufferPart) parts.get(current)).buffer.hasRemaining()) {
+                    parts.get(current).release();
+                    current++;
+                }
+                return false;
+            }
+            remaining -= written;
+        }
+        for(; current < end; current++) {
+            parts.get(current).release();
+        }
+        return true;
+    }
+
+    /**
+     * Frees the resources of all parts that have not been written yet
+     */
+    public void release() {
+        for(int i = current; i < parts.size(); i++) {
+            parts.get(i).release();
+        }
+        current = parts.size();
+    }
+
+    /**
+     * Builds a strong entity tag from the size and the modification time of a file
+     * @return the quoted entity tag
+     */
+    public static String getETag(long size, long lastModified) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Builds a strong entity tag for an encoded variant of a file
+     * @param  encoding the content coding of the variant, e.g. "gzip"
+     * @return the quoted entity tag
+     */
+    public static String getETag(long size, long lastModified, String encoding) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "-" + encoding + "\"";
+    }
+
+    /**
+     * Guesses the media type of a file from its extension
+     * @param  fileName name of the file
+     * @return the media type, application/octet-stream if it is unknown
+     */
+    public static String getContentType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        String type = dot < 0 ? null : CONTENT_TYPES.get(fileName.substring(dot + 1).toLowerCase());
+        return type != null ? type : "application/octet-stream";
+    }
+
+    /**
+     * @return true for text based media types that shrink when they are compressed
+     */
+    public static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/")
+            || contentType.startsWith("application/javascript")
+            || contentType.startsWith("application/json")
+            || contentType.startsWith("application/xml")
+            || contentType.startsWith("image/svg+xml");
+    }
+
+    /**
+     * Formats a time the way HTTP headers expect it, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+     * @param  millis milliseconds since the epoch
+     */
+    public static String formatDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    /**
+     * Parses a time in the format of formatDate
+     * @return milliseconds since the epoch, or -1 if the value is not a valid date
+     */
+    public static long parseDate(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch(DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static abstract class Part {
+        /**
+         * @return true if the part has been written completely
+         */
+        abstract boolean writeTo(WritableByteChannel channel) throws IOException;
+
+        void release() {
+        }
+    }
+
+    private static class BufferPart extends Part {
+        private final ByteBuffer buffer;
+        private Runnable onRelease;
+
+        BufferPart(ByteBuffer buffer, Runnable onRelease) {
+            this.buffer = buffer;
+            this.onRelease = onRelease;
+        }
+
+        boolean writeTo(WritableByteChannel channel) throws IOException {
+            while(buffer.hasRemaining()) {
+                if(channel.write(buffer) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void release() {
+            if(onRelease != null) {
+                onRelease.run();
+                onRelease = null;
+            }
+        }
+    }
+
+    private static class FilePart extends Part {
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+        private final boolean close;
+
+        FilePart(FileChannel file, long position, long count, boolean close) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+            this.close = close;
+        }
+
+        boolean writeTo(WritableByteChannel channel) throws IOException {
+            while(remaining > 0) {
+                long sent = file.transferTo(position, remaining, channel);
+                if(sent <= 0) {
+                    if(position >= file.size()) {
+                        throw new EOFException("File was truncated while it was sent");
+                    }
+                    return false;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+            return true;
+        }
+
+        void release() {
+            if(!close) {
+                return;
+            }
+            try {
+                file.close();
+            } catch(IOException e) {
+                // the file was only read from
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in the style of HdrHistogram.
+ * Small values are counted exactly. Above that the buckets get wider with
+ * every power of two, so each value is kept with three significant decimal
+ * digits and the whole range up to the highest trackable value needs only
+ * a few ten thousand counters. Recording is lock-free and may happen from
+ * many threads at once. The histogram has no unit, the caller decides
+ * whether it records nanoseconds or microseconds.
+ */
+class LatencyHistogram {
+    // values below SUB_BUCKET_COUNT are counted exactly
+    private static final int SUB_BUCKET_BITS = 11;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    private final long highestTrackableValue;
+    private final AtomicLongArray counts;
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param  highestTrackableValue larger values are counted as this value
+     */
+    public LatencyHistogram(long highestTrackableValue) {
+        this.highestTrackableValue = highestTrackableValue;
+        this.counts = new AtomicLongArray(indexOf(highestTrackableValue) + 1);
+    }
+
+    private static int indexOf(long value) {
+        if(value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // shift the value right until it is in the upper half of a sub-bucket range
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + (int) (value >> shift) - SUB_BUCKET_HALF_COUNT;
+    }
+
+    /**
+     * @return the largest value that is counted in the same bucket as index
+     */
+    private static long highestValueAt(int index) {
+        if(index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return (subBucket << shift) + (1L << shift) - 1;
+    }
+
+    public void record(long value) {
+        long clamped = Math.min(Math.max(value, 0), highestTrackableValue);
+        counts.incrementAndGet(indexOf(clamped));
+        totalCount.increment();
+        sum.add(clamped);
+        max.accumulate(clamped);
+    }
+
+    /**
+     * Records a value and corrects for coordinated omission the way
+     * HdrHistogram does. A client that waits for every response before it
+     * sends the next request does not send the requests it would have sent
+     * while a slow response was outstanding, so their latencies never show
+     * up. This adds them back: every expected interval that the value spans
+     * is recorded as a request that waited that much less.
+     * @param  value the measured latency
+     * @param  expectedInterval the time between requests when nothing stalls,
+     *         0 to record the value without correction
+     */
+    public void recordCorrected(long value, long expectedInterval) {
+        record(value);
+        if(expectedInterval <= 0) {
+            return;
+        }
+        for(long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+            record(missing);
+        }
+    }
+
+    /**
+     * Adds all values of another histogram with the same highest trackable value
+     */
+    public void add(LatencyHistogram other) {
+        for(int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if(count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.add(other.totalCount.sum());
+        sum.add(other.sum.sum());
+        max.accumulate(other.max.get());
+    }
+
+    /**
+     * @param  percentile between 0 and 100
+     * @return the value that percentile of the recorded values are at or below,
+     *         with three significant digits, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for(int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for(int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if(seen >= target) {
+                return Math.min(highestValueAt(i), getMax());
+            }
+        }
+        return 0;
+    }
+
+    public long getTotalCount() {
+        return totalCount.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+}
@@ -0,0 +1,613 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Load generator for the WebServer.
+ * A few worker threads drive many keep-alive connections through their own
+ * Selectors, so the generator itself does not need a thread per connection.
+ *
+ * In the closed loop (the default) every connection sends a new request as
+ * soon as a response comes back, keeping the given number of requests in
+ * flight. In the open loop (-rate) requests are scheduled at a fixed rate
+ * no matter how fast the server answers, and latency is measured from the
+ * time a request was supposed to be sent. A server that stalls therefore
+ * shows up with the latency every waiting client sees instead of hiding
+ * behind the requests that were never sent (coordinated omission). Closed
+ * loop results can be corrected after the fact with -expectedIntervalMicros.
+ *
+ * Usage: java LoadGenerator <host> <port> [options], see main for the options.
+ */
+public class LoadGenerator {
+    static final long HIGHEST_TRACKABLE_MICROS = 3600L * 1000 * 1000;
+    static final int BUFFER_SIZE = 64 * 1024;
+    // the requests of a full pipeline have to fit into the output buffer
+    static final int MAX_PIPELINE_DEPTH = 256;
+    // time given to outstanding requests after the run before they count as unfinished
+    static final long DRAIN_MILLIS = 2000;
+    // wait before connecting again after a connection failed
+    static final long RECONNECT_DELAY_MILLIS = 100;
+    static final double[] PERCENTILES = {50, 75, 90, 99, 99.9, 99.99, 100};
+
+    private String host;
+    private int port;
+    private int connections = 16;
+    private int threads = Math.max(1, Math.min(connections, Runtime.getRuntime().availableProcessors()));
+    private boolean threadsSet = false;
+    private int warmupSeconds = 2;
+    private int durationSeconds = 10;
+    // requests per second over all connections, 0 for the closed loop
+    private long rate = 0;
+    private int pipelineDepth = 1;
+    private boolean keepAlive = true;
+    private long expectedIntervalMicros = 0;
+    private String[] paths = {"/demo.html"};
+    private int[] cumulativeWeights = {1};
+
+    private byte[][] requests;
+    private InetSocketAddress address;
+    private long measureFrom;
+    private long end;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.host = args[0];
+            generator.port = Integer.parseInt(args[1]);
+            generator.parseOptions(args);
+        } catch (Exception e) {
+            System.out.println("Usage: java LoadGenerator <host> <port> [-connections <n>] [-threads <n>]"
+                + " [-duration <seconds>] [-warmup <seconds>] [-rate <requests per second>]"
+                + " [-pipeline <depth>] [-keepAlive true|false] [-urls <path>[:<weight>],...]"
+                + " [-expectedIntervalMicros <n>]");
+            System.exit(1);
+        }
+        generator.run();
+    }
+
+    /**
+     * Parses the optional "-name value" arguments that follow the host and port
+     * @param  args the command line arguments
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value
+     */
+    void parseOptions(String[] args) {
+        for(int i = 2; i < args.length; i += 2) {
+            if(i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch(args[i]) {
+                case "-connections":
+                    connections = positive(args[i], value);
+                    break;
+                case "-threads":
+                    threads = positive(args[i], value);
+                    threadsSet = true;
+                    break;
+                case "-duration":
+                    durationSeconds = positive(args[i], value);
+                    break;
+                case "-warmup":
+                    warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "-rate":
+                    rate = Long.parseLong(value);
+                    break;
+                case "-pipeline":
+                    pipelineDepth = positive(args[i], value);
+                    if(pipelineDepth > MAX_PIPELINE_DEPTH) {
+                        throw new IllegalArgumentException("pipeline must be at most " + MAX_PIPELINE_DEPTH);
+                    }
+                    break;
+                case "-keepAlive":
+                    keepAlive = Boolean.parseBoolean(value);
+                    break;
+                case "-expectedIntervalMicros":
+                    expectedIntervalMicros = Long.parseLong(value);
+                    break;
+                case "-urls":
+                    parseUrls(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if(!threadsSet) {
+            threads = Math.max(1, Math.min(connections, Runtime.getRuntime().availableProcessors()));
+        }
+        threads = Math.min(threads, connections);
+        if(!keepAlive) {
+            // the server closes the connection after every response
+            pipelineDepth = 1;
+        }
+    }
+
+    private static int positive(String name, String value) {
+        int parsed = Integer.parseInt(value);
+        if(parsed < 1) {
+            throw new IllegalArgumentException(name.substring(1) + " must be positive");
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses a URL mix like "/demo.html:9,/doge.jpg:1", the weight defaults to 1
+     */
+    private void parseUrls(String value) {
+        String[] items = value.split(",");
+        paths = new String[items.length];
+        cumulativeWeights = new int[items.length];
+        int total = 0;
+        for(int i = 0; i < items.length; i++) {
+            String item = items[i];
+            int weight = 1;
+            int colon = item.lastIndexOf(':');
+            if(colon >= 0) {
+                weight = positive("-weight", item.substring(colon + 1));
+                item = item.substring(0, colon);
+            }
+            paths[i] = item.startsWith("/") ? item : "/" + item;
+            total += weight;
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    void run() throws Exception {
+        address = new InetSocketAddress(host, port);
+        requests = new byte[paths.length][];
+        for(int i = 0; i < paths.length; i++) {
+            requests[i] = ("GET " + paths[i] + " HTTP/1.1\r\n"
+                + "Host: " + host + ":" + port + "\r\n"
+                + (keepAlive ? "" : "Connection: close\r\n")
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        System.out.println("Running " + durationSeconds + " s after " + warmupSeconds + " s warmup against " + host + ":" + port
+            + ", " + connections + " connections on " + threads + " threads, "
+            + (rate > 0 ? "open loop at " + rate + " requests/s" : "closed loop")
+            + ", pipeline depth " + pipelineDepth + (keepAlive ? ", keep-alive" : ", no keep-alive"));
+
+        long start = System.nanoTime();
+        measureFrom = start + warmupSeconds * 1000000000L;
+        end = measureFrom + durationSeconds * 1000000000L;
+        Worker[] workers = new Worker[threads];
+        for(int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i);
+        }
+        for(int i = 0; i < connections; i++) {
+            // spread the first requests of the open loop evenly over one interval
+            long firstDue = rate > 0 ? start + i * 1000000000L / rate : start;
+            long interval = rate > 0 ? connections * 1000000000L / rate : 0;
+            workers[i % threads].connections.add(new Connection(workers[i % threads], firstDue, Math.max(1, interval), rate > 0));
+        }
+        for(Worker worker : workers) {
+            worker.start();
+        }
+
+        LatencyHistogram corrected = new LatencyHistogram(HIGHEST_TRACKABLE_MICROS);
+        LatencyHistogram uncorrected = new LatencyHistogram(HIGHEST_TRACKABLE_MICROS);
+        long responses = 0;
+        long bytes = 0;
+        long errors = 0;
+        long reconnects = 0;
+        long unfinished = 0;
+        long[] statusClasses = new long[6];
+        for(Worker worker : workers) {
+            worker.join();
+            corrected.add(worker.corrected);
+            uncorrected.add(worker.uncorrected);
+            responses += worker.responses;
+            bytes += worker.bytes;
+            errors += worker.errors;
+            reconnects += worker.reconnects;
+            unfinished += worker.unfinished;
+            for(int i = 0; i < statusClasses.length; i++) {
+                statusClasses[i] += worker.statusClasses[i];
+            }
+        }
+
+        System.out.printf("  responses: %d (%.1f requests/s), %.2f MB/s%n",
+            responses, (double) responses / durationSeconds, bytes / 1e6 / durationSeconds);
+        System.out.printf("  status: 2xx %d, 3xx %d, 4xx %d, 5xx %d%n",
+            statusClasses[2], statusClasses[3], statusClasses[4], statusClasses[5]);
+        System.out.printf("  errors: %d, reconnects: %d, unfinished: %d%n", errors, reconnects, unfinished);
+        if(rate > 0 && unfinished > 0) {
+            System.out.println("  the server did not keep up with " + rate + " requests/s");
+        }
+        if(rate > 0) {
+            printLatencies("Latency from the intended send time, corrected for coordinated omission", corrected);
+            printLatencies("Latency from the actual send time (service time)", uncorrected);
+        } else if(expectedIntervalMicros > 0) {
+            printLatencies("Latency corrected for coordinated omission with an expected interval of "
+                + expectedIntervalMicros + " us", corrected);
+            printLatencies("Latency as measured, not corrected", uncorrected);
+        } else {
+            printLatencies("Latency as measured, not corrected (use -rate or -expectedIntervalMicros)", uncorrected);
+        }
+        System.exit(0);
+    }
+
+    private static void printLatencies(String title, LatencyHistogram histogram) {
+        System.out.println(title + ", in ms:");
+        StringBuilder names = new StringBuilder("  ");
+        StringBuilder values = new StringBuilder("  ");
+        names.append(String.format("%10s", "mean"));
+        values.append(String.format("%10.3f", histogram.getMean() / 1000));
+        for(double percentile : PERCENTILES) {
+            names.append(String.format("%10s", percentile == 100 ? "max" : "p" + (percentile == (long) percentile
+                ? Long.toString((long) percentile) : Double.toString(percentile))));
+            values.append(String.format("%10.3f", histogram.getValueAtPercentile(percentile) / 1000.0));
+        }
+        System.out.println(names);
+        System.out.println(values);
+    }
+
+    /**
+     * A thread that serves a share of the connections from one Selector
+     * and keeps its own statistics, merged once the run is over
+     */
+    private class Worker extends Thread {
+        final Selector selector;
+        final List<Connection> connections = new ArrayList<Connection>();
+        final SplittableRandom random;
+        final LatencyHistogram corrected = new LatencyHistogram(HIGHEST_TRACKABLE_MICROS);
+        final LatencyHistogram uncorrected = new LatencyHistogram(HIGHEST_TRACKABLE_MICROS);
+        long responses = 0;
+        long bytes = 0;
+        long errors = 0;
+        long reconnects = 0;
+        long unfinished = 0;
+        final long[] statusClasses = new long[6];
+
+        Worker(int id) throws IOException {
+            super("load-" + id);
+            selector = Selector.open();
+            random = new SplittableRandom(id);
+        }
+
+        int pickRequest() {
+            int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            int i = 0;
+            while(cumulativeWeights[i] <= pick) {
+                i++;
+            }
+            return i;
+        }
+
+        /**
+         * Records a response to a request that was sent after the warmup
+         * @param  sent the intended and the actual send time and the request index
+         */
+        void record(long[] sent, long now, int status, long responseBytes) {
+            if(sent[0] < measureFrom) {
+                return;
+            }
+            responses++;
+            bytes += responseBytes;
+            statusClasses[Math.min(Math.max(status / 100, 0), statusClasses.length - 1)]++;
+            long serviceMicros = (now - sent[1]) / 1000;
+            uncorrected.record(serviceMicros);
+            if(rate > 0) {
+                corrected.record((now - sent[0]) / 1000);
+            } else {
+                corrected.recordCorrected(serviceMicros, expectedIntervalMicros);
+            }
+        }
+
+        public void run() {
+            try {
+                long now;
+                while((now = System.nanoTime()) < end) {
+                    long wakeUp = end;
+                    for(Connection connection : connections) {
+                        wakeUp = Math.min(wakeUp, connection.sendDue(now));
+                    }
+                    long wait = wakeUp - System.nanoTime();
+                    // select only has millisecond resolution, so spin for the last one
+                    if(wait < 1000000) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(wait / 1000000);
+                    }
+                    handleSelected();
+                }
+                // let the outstanding requests finish
+                long drainUntil = System.nanoTime() + DRAIN_MILLIS * 1000000;
+                while(System.nanoTime() < drainUntil && hasOutstanding()) {
+                    selector.select(10);
+                    handleSelected();
+                }
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+            for(Connection connection : connections) {
+                unfinished += connection.countUnfinished();
+                connection.close();
+            }
+        }
+
+        private boolean hasOutstanding() {
+            for(Connection connection : connections) {
+                if(connection.channel != null && !connection.inFlight.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void handleSelected() {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Connection connection = (Connection) key.attachment();
+                long now = System.nanoTime();
+                try {
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    if(key.isConnectable()) {
+                        connection.onConnectable();
+                    }
+                    if(key.isValid() && key.isReadable()) {
+                        connection.onReadable(now);
+                    }
+                    if(key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                } catch(IOException | CancelledKeyException e) {
+                    errors++;
+                    connection.lost(now, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * One client connection with the requests it has in flight. Requests
+     * that are in flight when the connection closes are sent again on the
+     * next connection and keep their intended send time.
+     */
+    private class Connection {
+        private final Worker worker;
+        private final boolean openLoop;
+        private final long interval;
+        // intended send time of the next request in the open loop
+        private long nextDue;
+        private long reconnectAt = 0;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private boolean connected = false;
+        // intended send time, actual send time and request index of every unanswered request
+        private final ArrayDeque<long[]> inFlight = new ArrayDeque<long[]>();
+        private final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        // -1 while waiting for a response head
+        private long bodyRemaining = -1;
+        private boolean bodyUntilClose = false;
+        private boolean closeAfterResponse = false;
+        private int status = 0;
+        private long responseBytes = 0;
+
+        Connection(Worker worker, long firstDue, long interval, boolean openLoop) {
+            this.worker = worker;
+            this.nextDue = firstDue;
+            this.interval = interval;
+            this.openLoop = openLoop;
+        }
+
+        /**
+         * Queues the requests that are due and fit into the pipeline
+         * @return the time this connection wants to send its next request
+         */
+        long sendDue(long now) throws IOException {
+            boolean queued = false;
+            while(inFlight.size() < pipelineDepth) {
+                long intended = now;
+                if(openLoop) {
+                    if(nextDue > now) {
+                        break;
+                    }
+                    intended = nextDue;
+                    nextDue += interval;
+                }
+                int request = worker.pickRequest();
+                inFlight.add(new long[] {intended, now, request});
+                if(channel != null) {
+                    out.put(requests[request]);
+                }
+                queued = true;
+            }
+            if(channel == null && !inFlight.isEmpty()) {
+                if(now < reconnectAt) {
+                    return reconnectAt;
+                }
+                connect(now);
+            } else if(queued && connected) {
+                write();
+            }
+            return openLoop && inFlight.size() < pipelineDepth ? nextDue : Long.MAX_VALUE;
+        }
+
+        private void connect(long now) {
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connected = channel.connect(address);
+                key = channel.register(worker.selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                // everything still in flight goes out again on this connection
+                out.clear();
+                for(long[] sent : inFlight) {
+                    out.put(requests[(int) sent[2]]);
+                    sent[1] = now;
+                }
+                if(connected) {
+                    write();
+                }
+            } catch(IOException e) {
+                worker.errors++;
+                lost(now, true);
+            }
+        }
+
+        void onConnectable() throws IOException {
+            channel.finishConnect();
+            connected = true;
+            key.interestOps(SelectionKey.OP_READ);
+            write();
+        }
+
+        void write() throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        void onReadable(long now) throws IOException {
+            int read = channel.read(in);
+            if(read < 0) {
+                if(bodyUntilClose) {
+                    complete(now);
+                }
+                lost(now, false);
+                return;
+            }
+            while(channel != null) {
+                if(bodyRemaining < 0 && !readHead()) {
+                    return;
+                }
+                // without a Content-Length everything up to the close is body
+                long take = bodyUntilClose ? in.position() : Math.min(bodyRemaining, in.position());
+                if(take == in.position()) {
+                    in.clear();
+                } else {
+                    in.flip();
+                    in.position((int) take);
+                    in.compact();
+                }
+                responseBytes += take;
+                if(bodyUntilClose) {
+                    return;
+                }
+                bodyRemaining -= take;
+                if(bodyRemaining > 0) {
+                    return;
+                }
+                complete(now);
+                if(closeAfterResponse) {
+                    lost(now, false);
+                }
+            }
+        }
+
+        /**
+         * Parses a response head at the start of the input buffer and drops it from there
+         * @return false if the head is not complete yet
+         */
+        private boolean readHead() throws IOException {
+            byte[] bytes = in.array();
+            int headEnd = -1;
+            for(int i = 3; i < in.position(); i++) {
+                if(bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+                    headEnd = i + 1;
+                    break;
+                }
+            }
+            if(headEnd < 0) {
+                if(!in.hasRemaining()) {
+                    throw new IOException("Response head does not fit into the buffer");
+                }
+                return false;
+            }
+            String head = new String(bytes, 0, headEnd, StandardCharsets.ISO_8859_1).toLowerCase();
+            try {
+                status = Integer.parseInt(head.substring(9, 12));
+            } catch(NumberFormatException | IndexOutOfBoundsException e) {
+                throw new IOException("Malformed status line");
+            }
+            closeAfterResponse = head.contains("\r\nconnection: close") || head.startsWith("http/1.0");
+            int index = head.indexOf("\r\ncontent-length:");
+            bodyUntilClose = false;
+            if(index >= 0) {
+                bodyRemaining = Long.parseLong(head.substring(index + 17, head.indexOf('\r', index + 2)).trim());
+            } else if(status == 304 || status == 204 || status / 100 == 1) {
+                bodyRemaining = 0;
+            } else {
+                bodyRemaining = 0;
+                bodyUntilClose = true;
+            }
+            responseBytes = headEnd;
+            in.flip();
+            in.position(headEnd);
+            in.compact();
+            return true;
+        }
+
+        private void complete(long now) throws IOException {
+            long[] sent = inFlight.poll();
+            if(sent == null) {
+                throw new IOException("Response without a request");
+            }
+            worker.record(sent, now, status, responseBytes);
+            bodyRemaining = -1;
+            bodyUntilClose = false;
+        }
+
+        /**
+         * Drops the connection, the requests in flight are sent again on the next one
+         * @param  failed whether to wait a little before connecting again
+         */
+        void lost(long now, boolean failed) {
+            close();
+            worker.reconnects++;
+            reconnectAt = failed ? now + RECONNECT_DELAY_MILLIS * 1000000 : now;
+        }
+
+        void close() {
+            if(channel != null) {
+                if(key != null) {
+                    key.cancel();
+                }
+                try {
+                    channel.close();
+                } catch(IOException e) {
+                    // the connection is gone either way
+                }
+            }
+            channel = null;
+            key = null;
+            connected = false;
+            in.clear();
+            out.clear();
+            bodyRemaining = -1;
+            bodyUntilClose = false;
+        }
+
+        /**
+         * @return requests of the measured period that never got a response,
+         *         including those the open loop was too far behind to send
+         */
+        long countUnfinished() {
+            long count = 0;
+            for(long[] sent : inFlight) {
+                if(sent[0] >= measureFrom) {
+                    count++;
+                }
+            }
+            if(openLoop && nextDue < end) {
+                count += (end - Math.max(nextDue, measureFrom) + interval - 1) / interval;
+            }
+            return count;
+        }
+    }
+}
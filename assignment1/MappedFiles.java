@@ -0,0 +1,219 @@
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory mappings of large files, shared by all connections.
+ * A file is mapped once and every response writes from its own view of
+ * the mapping, so serving it neither allocates a copy of the body nor
+ * reads it with separate system calls. A mapping is reference counted:
+ * the registry holds one reference and every response that is still
+ * being written holds another. When the file changes or the mapping is
+ * evicted to stay within the byte budget, the registry drops its
+ * reference and the mapping is unmapped after the last response is done.
+ */
+class MappedFiles {
+    private final long minBytes;
+    private final long maxBytes;
+    private final long revalidateMillis;
+    private final ConcurrentHashMap<Path, Mapping> mappings = new ConcurrentHashMap<Path, Mapping>();
+    private final AtomicLong mappedBytes = new AtomicLong();
+
+    /**
+     * A mapped file
+     */
+    static class Mapping {
+        private final MappedByteBuffer buffer;
+        final long size;
+        final long lastModified;
+        volatile long checkedAt;
+        volatile long lastUsed;
+        // starts with the reference of the registry
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        Mapping(MappedByteBuffer buffer, long size, long lastModified, long now) {
+            this.buffer = buffer;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checkedAt = now;
+            this.lastUsed = now;
+        }
+
+        /**
+         * @return a view of the mapping with its own position and limit
+         */
+        ByteBuffer view() {
+            return buffer.duplicate();
+        }
+
+        /**
+         * @return false if the mapping is already released and must not be used
+         */
+        private boolean retain() {
+            while(true) {
+                int current = references.get();
+                if(current == 0) {
+                    return false;
+                }
+                if(references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Drops a reference, the last one unmaps the file
+         */
+        void release() {
+            if(references.decrementAndGet() == 0) {
+                unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * @param  minBytes smaller files are not mapped
+     * @param  maxBytes upper bound for the bytes mapped by the registry
+     * @param  revalidateMillis how long a mapping is used without checking the file
+     */
+    public MappedFiles(long minBytes, long maxBytes, long revalidateMillis) {
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        this.revalidateMillis = revalidateMillis;
+    }
+
+    /**
+     * Returns a retained mapping of a file, mapping it if necessary.
+     * The caller has to release the mapping once it is done with it.
+     * @param  path normalized absolute path of the file
+     * @return the mapping, or null if the file should not be mapped
+     * @throws IOException if the file does not exist or cannot be mapped
+     */
+    public Mapping acquire(Path path) throws IOException {
+        long now = System.currentTimeMillis();
+        Mapping mapping = mappings.get(path);
+        if(mapping != null && now - mapping.checkedAt < revalidateMillis && mapping.retain()) {
+            mapping.lastUsed = now;
+            return mapping;
+        }
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch(IOException e) {
+            drop(path);
+            throw e;
+        }
+        if(!attributes.isRegularFile()) {
+            drop(path);
+            throw new NoSuchFileException(path.toString());
+        }
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if(size < minBytes || size > Integer.MAX_VALUE || size > maxBytes) {
+            drop(path);
+            return null;
+        }
+        if(mapping != null && mapping.size == size && mapping.lastModified == lastModified && mapping.retain()) {
+            mapping.checkedAt = now;
+            mapping.lastUsed = now;
+            return mapping;
+        }
+
+        MappedByteBuffer buffer;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        Mapping fresh = new Mapping(buffer, size, lastModified, now);
+        fresh.retain();
+        Mapping previous = mappings.put(path, fresh);
+        mappedBytes.addAndGet(size);
+        if(previous != null) {
+            mappedBytes.addAndGet(-previous.size);
+            previous.release();
+        }
+        evict(fresh);
+        return fresh;
+    }
+
+    /**
+     * Drops the least recently used mappings until the budget is met again
+     * @param  keep a mapping that must stay
+     */
+    private void evict(Mapping keep) {
+        while(mappedBytes.get() > maxBytes) {
+            Map.Entry<Path, Mapping> eldest = null;
+            for(Map.Entry<Path, Mapping> entry : mappings.entrySet()) {
+                if(entry.getValue() != keep && (eldest == null || entry.getValue().lastUsed < eldest.getValue().lastUsed)) {
+                    eldest = entry;
+                }
+            }
+            if(eldest == null) {
+                return;
+            }
+            if(mappings.remove(eldest.getKey(), eldest.getValue())) {
+                mappedBytes.addAndGet(-eldest.getValue().size);
+                eldest.getValue().release();
+            }
+        }
+    }
+
+    private void drop(Path path) {
+        Mapping previous = mappings.remove(path);
+        if(previous != null) {
+            mappedBytes.addAndGet(-previous.size);
+            previous.release();
+        }
+    }
+
+    public long getMappedBytes() {
+        return mappedBytes.get();
+    }
+
+    // sun.misc.Unsafe.invokeCleaner, if this JVM lets us use it
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * Unmaps a buffer right away instead of waiting for the garbage collector.
+     * Only called once no response is writing from the buffer anymore.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if(INVOKE_CLEANER == null) {
+            // the mapping is released when the buffer is garbage collected
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch(ReflectiveOperationException e) {
+            // same as above, the garbage collector takes care of it
+        }
+    }
+}
@@ -0,0 +1,318 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking engine for the WebServer.
+ * One thread accepts connections and deals them out round-robin to a fixed
+ * number of event loops. Every event loop owns a Selector and serves all of
+ * its connections without ever blocking on a single client, so idle
+ * keep-alive connections only cost a selection key and no thread.
+ */
+class NioEngine {
+    // size of a pooled request buffer, a request head has to fit into it
+    static final int BUFFER_SIZE = 8192;
+    // buffers kept around per event loop for reuse
+    static final int MAX_POOLED_BUFFERS = 256;
+    // responses queued per connection before further pipelined requests wait
+    static final int MAX_PIPELINED = 16;
+
+    private final WebServer server;
+    private final EventLoop[] loops;
+    private final int idleTimeoutMillis;
+    private final int maxRequestsPerConnection;
+
+    /**
+     * @param  server answers the requests
+     * @param  eventLoops number of selector threads
+     * @param  idleTimeoutMillis connections without traffic for this long are closed
+     * @param  maxRequestsPerConnection a connection is closed after this many requests
+     */
+    public NioEngine(WebServer server, int eventLoops, int idleTimeoutMillis, int maxRequestsPerConnection) {
+        this.server = server;
+        this.loops = new EventLoop[eventLoops];
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+
+    /**
+     * Starts the event loops and accepts connections on the calling thread
+     * @param  port port to listen on
+     * @throws IOException
+     */
+    public void start(int port) throws IOException {
+        for(int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        int next = 0;
+        while(true) {
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            server.getMetrics().connectionOpened();
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    /**
+     * A selector thread together with the buffers it hands out to its connections
+     */
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+        private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<ByteBuffer>();
+
+        EventLoop(int id) throws IOException {
+            super("nio-loop-" + id);
+            selector = Selector.open();
+        }
+
+        /**
+         * Hands a freshly accepted channel over to this loop. Called from the accept thread.
+         * @param  channel a non-blocking channel
+         */
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        ByteBuffer acquireBuffer() {
+            ByteBuffer buffer = bufferPool.poll();
+            return buffer != null ? buffer : ByteBuffer.allocate(BUFFER_SIZE);
+        }
+
+        void releaseBuffer(ByteBuffer buffer) {
+            buffer.clear();
+            if(bufferPool.size() < MAX_POOLED_BUFFERS) {
+                bufferPool.push(buffer);
+            }
+        }
+
+        /**
+         * Closes the keep-alive connections that have been quiet for too long
+         */
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            for(SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if(connection != null && key.isValid() && connection.isIdle(now)) {
+                    connection.close();
+                }
+            }
+        }
+
+        public void run() {
+            // check for idle connections a few times per timeout
+            long sweepInterval = Math.max(1, idleTimeoutMillis / 4);
+            long nextSweep = System.currentTimeMillis() + sweepInterval;
+            while(true) {
+                try {
+                    selector.select(sweepInterval);
+                    SocketChannel channel;
+                    while((channel = pending.poll()) != null) {
+                        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                        key.attach(new Connection(this, channel, key));
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if(key.isReadable()) {
+                                connection.onReadable();
+                            } else if(key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch(IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                    if(System.currentTimeMillis() >= nextSweep) {
+                        closeIdleConnections();
+                        nextSweep = System.currentTimeMillis() + sweepInterval;
+                    }
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one client connection: the partially received request and
+     * the responses that still have to be written
+     */
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        // only held while a request is partially received
+        private ByteBuffer in;
+        // index of the first byte in "in" that belongs to an unanswered request
+        private int inStart = 0;
+        private final ArrayDeque<HTTPResponse> out = new ArrayDeque<HTTPResponse>();
+        private boolean closeAfterWrite = false;
+        private int served = 0;
+        // last time a request arrived
+        private long lastActivity = System.currentTimeMillis();
+        // last time the socket had room for output, OP_WRITE only fires then
+        private long lastWrite = System.currentTimeMillis();
+        // reused for every request on this connection
+        private final HTTPRequest request = new HTTPRequest();
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void onReadable() throws IOException {
+            if(in == null) {
+                in = loop.acquireBuffer();
+            }
+            int read = channel.read(in);
+            if(read < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            processRequests();
+            flush();
+        }
+
+        void onWritable() throws IOException {
+            lastWrite = System.currentTimeMillis();
+            flush();
+        }
+
+        /**
+         * A connection is idle when no request has arrived for idleTimeoutMillis
+         * and nothing is left to write, or when its pending output has not moved
+         * for that long, e.g. a client that pipelines requests but never reads
+         */
+        boolean isIdle(long now) {
+            if(out.isEmpty()) {
+                return now - lastActivity >= idleTimeoutMillis;
+            }
+            return now - Math.max(lastActivity, lastWrite) >= idleTimeoutMillis;
+        }
+
+        /**
+         * Answers the complete request heads in the input buffer, in order.
+         * Stops once MAX_PIPELINED responses are waiting to be written so a
+         * client that pipelines aggressively cannot queue up unbounded work.
+         * @return true if at least one response was queued
+         */
+        private boolean processRequests() {
+            boolean answered = false;
+            while(!closeAfterWrite && out.size() < MAX_PIPELINED) {
+                long parseStart = System.nanoTime();
+                int headEnd = request.parse(in.array(), inStart, in.position());
+                if(headEnd < 0) {
+                    if(inStart == 0 && !in.hasRemaining()) {
+                        // the request head does not fit into a buffer
+                        HTTPResponse response = server.get400Response(request);
+                        server.logAccess(channel.socket().getInetAddress(), null, response);
+                        out.add(response);
+                        closeAfterWrite = true;
+                        answered = true;
+                    }
+                    break;
+                }
+                long received = System.nanoTime();
+                server.getMetrics().requestParsed(received - parseStart);
+                served++;
+                boolean keepAlive = request.isPersistent() && served < maxRequestsPerConnection;
+                HTTPResponse response;
+                if(request.isValid()) {
+                    response = server.getResponse(request, keepAlive);
+                } else {
+                    response = server.get400Response(request);
+                    keepAlive = false;
+                }
+                response.setReceivedNanos(received);
+                server.logAccess(channel.socket().getInetAddress(), request, response);
+                out.add(response);
+                closeAfterWrite = !keepAlive;
+                answered = true;
+                // the request points into the buffer, so it is only dropped once it is answered
+                inStart = headEnd;
+            }
+            compactInput();
+            return answered;
+        }
+
+        /**
+         * Drops the answered requests from the input buffer and hands the
+         * buffer back to the pool if nothing is left in it
+         */
+        private void compactInput() {
+            if(in == null) {
+                return;
+            }
+            if(inStart > 0) {
+                in.flip();
+                in.position(inStart);
+                in.compact();
+                inStart = 0;
+            }
+            if(in.position() == 0) {
+                loop.releaseBuffer(in);
+                in = null;
+            }
+        }
+
+        /**
+         * Writes as much of the queued responses as the socket takes
+         * and selects for writability if some of it is left over.
+         * Requests that were held back while responses were queued are
+         * answered once the queue drains.
+         */
+        private void flush() throws IOException {
+            do {
+                while(!out.isEmpty()) {
+                    if(!out.peek().writeTo(channel)) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    server.getMetrics().responseSent(out.poll());
+                }
+                if(closeAfterWrite) {
+                    close();
+                    return;
+                }
+            } while(in != null && processRequests());
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close() {
+            if(!channel.isOpen()) {
+                return;
+            }
+            server.getMetrics().connectionClosed();
+            key.cancel();
+            try {
+                channel.close();
+            } catch(IOException e) {
+                // nothing left to do with this connection
+            }
+            if(in != null) {
+                loop.releaseBuffer(in);
+                in = null;
+            }
+            HTTPResponse response;
+            while((response = out.poll()) != null) {
+                response.release();
+            }
+        }
+    }
+}
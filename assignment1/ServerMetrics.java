@@ -0,0 +1,125 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime metrics of the WebServer, exported in the Prometheus text format.
+ * Counters are LongAdders, which spread concurrent updates over several
+ * cells instead of contending on one. Histograms are LatencyHistograms,
+ * where every bucket is its own atomic counter, so recording never takes a
+ * lock. Reading the metrics sums everything up and is the slow side.
+ */
+class ServerMetrics {
+    // request path of the metrics endpoint, without the leading slash
+    static final String PATH = "metrics";
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final long HOUR_MICROS = 3600L * 1000 * 1000;
+    private static final long SECOND_NANOS = 1000L * 1000 * 1000;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder active = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    // indexed by status code
+    private final LongAdder[] responses = new LongAdder[600];
+    private final LatencyHistogram parseNanos = new LatencyHistogram(SECOND_NANOS);
+    private final LatencyHistogram fileOpenMicros = new LatencyHistogram(HOUR_MICROS);
+    private final LatencyHistogram responseMicros = new LatencyHistogram(HOUR_MICROS);
+
+    public ServerMetrics() {
+        for(int i = 0; i < responses.length; i++) {
+            responses[i] = new LongAdder();
+        }
+    }
+
+    public void connectionOpened() {
+        accepted.increment();
+        active.increment();
+    }
+
+    public void connectionClosed() {
+        active.decrement();
+    }
+
+    /**
+     * @param  nanos time spent parsing a complete request head
+     */
+    public void requestParsed(long nanos) {
+        parseNanos.record(nanos);
+    }
+
+    /**
+     * @param  nanos time spent finding and opening the requested file,
+     *         in the cache, a memory mapping or the file system
+     */
+    public void fileOpened(long nanos) {
+        fileOpenMicros.record(nanos / 1000);
+    }
+
+    /**
+     * Records a response that has been written completely
+     */
+    public void responseSent(HTTPResponse response) {
+        int status = response.getStatus();
+        responses[status >= 0 && status < responses.length ? status : 0].increment();
+        bytesSent.add(response.getLength());
+        responseMicros.record((System.nanoTime() - response.getReceivedNanos()) / 1000);
+    }
+
+    /**
+     * Formats all metrics in the Prometheus text exposition format
+     * @param  fileCache the file cache, null if caching is disabled
+     * @param  mappedFiles the mapping registry, null if mapping is disabled
+     * @param  accessLog the access log, null if there is none
+     */
+    public String format(FileCache fileCache, MappedFiles mappedFiles, AccessLog accessLog) {
+        StringBuilder sb = new StringBuilder();
+        appendMetric(sb, "webserver_connections_accepted_total", "counter", "Connections accepted.", accepted.sum());
+        appendMetric(sb, "webserver_connections_active", "gauge", "Connections currently open.", active.sum());
+        sb.append("# HELP webserver_responses_total Responses sent, by status code.\n");
+        sb.append("# TYPE webserver_responses_total counter\n");
+        for(int i = 0; i < responses.length; i++) {
+            long count = responses[i].sum();
+            if(count > 0) {
+                sb.append("webserver_responses_total{code=\"" + i + "\"} " + count + "\n");
+            }
+        }
+        appendMetric(sb, "webserver_response_bytes_total", "counter", "Bytes of responses sent, headers included.", bytesSent.sum());
+        appendSummary(sb, "webserver_request_parse_seconds", "Time to parse a request head.", parseNanos, 1e-9);
+        appendSummary(sb, "webserver_file_open_seconds", "Time to find and open the requested file.", fileOpenMicros, 1e-6);
+        appendSummary(sb, "webserver_response_seconds", "Time from receiving a request to writing the last byte of its response.",
+            responseMicros, 1e-6);
+        if(fileCache != null) {
+            appendMetric(sb, "webserver_cache_hits_total", "counter", "File cache lookups answered from memory.", fileCache.getHits());
+            appendMetric(sb, "webserver_cache_misses_total", "counter", "File cache lookups that read the file.", fileCache.getMisses());
+            appendMetric(sb, "webserver_cache_evictions_total", "counter", "Entries evicted from the file cache.", fileCache.getEvictions());
+            appendMetric(sb, "webserver_cache_bytes", "gauge", "Bytes held by the file cache.", fileCache.getUsedBytes());
+            appendMetric(sb, "webserver_cache_entries", "gauge", "Entries in the file cache.", fileCache.size());
+        }
+        if(mappedFiles != null) {
+            appendMetric(sb, "webserver_mapped_bytes", "gauge", "Bytes of files mapped into memory.", mappedFiles.getMappedBytes());
+        }
+        if(accessLog != null) {
+            appendMetric(sb, "webserver_access_log_dropped_total", "counter", "Access log records dropped because the buffer was full.",
+                accessLog.getDropped());
+        }
+        return sb.toString();
+    }
+
+    private static void appendMetric(StringBuilder sb, String name, String type, String help, long value) {
+        sb.append("# HELP " + name + " " + help + "\n");
+        sb.append("# TYPE " + name + " " + type + "\n");
+        sb.append(name + " " + value + "\n");
+    }
+
+    /**
+     * @param  unit seconds per recorded unit
+     */
+    private static void appendSummary(StringBuilder sb, String name, String help, LatencyHistogram histogram, double unit) {
+        sb.append("# HELP " + name + " " + help + "\n");
+        sb.append("# TYPE " + name + " summary\n");
+        for(double quantile : QUANTILES) {
+            sb.append(name + "{quantile=\"" + quantile + "\"} " + histogram.getValueAtPercentile(quantile * 100) * unit + "\n");
+        }
+        sb.append(name + "_sum " + histogram.getSum() * unit + "\n");
+        sb.append(name + "_count " + histogram.getTotalCount() + "\n");
+    }
+}
@@ -1,134 +1,183 @@
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.file.*;
 import java.io.*;
-import java.util.HashMap;
-
-class HTTPRequest {
-    private String file;
-    private String method;
-    private String version;
-    private HashMap<String, String> headers;
-
-    public String getFilePath() {
-        return file;
-    }
-    
-    public String getMethod() {
-        return method;
-    }
-    
-    public String getVersion() {
-        return version;
-    }
-    
-    public String getHeaderValue(String headerName) {
-        return headers.get(headerName);
-    }
-    
-    public HTTPRequest() {
-        file = null;
-        method = null;
-        //default value in case no HTTP version provided
-        version = "1.1";
-        headers = null;
-    }
-    
-    /**
-     * Parses a request and set all the private variables
-     * @param  request a string that was read from the socket and contains the request
-     * @return returns true if parsing was successful
-     */
-    public boolean parseRequest(String request) {
-        String[] lines = request.split("\n");
-        //parse request line
-        String[] requests = lines[0].split(" ");
-        boolean isValidRequest = true;
-        //only support GET request
-        if(!requests[0].equals("GET")) {
-            isValidRequest = false;
-        } else {
-            method = "GET";
-        }
-        //get HTTP version
-        String lastWord = requests[requests.length - 1].substring(0, 5);
-        if(lastWord == null || !lastWord.equals("HTTP/")) {
-            isValidRequest = false;
-        } else {
-           String ver = requests[requests.length - 1].substring(5, 8);
-           if(ver.equals("1.0")) {
-               version = "1.0";
-           } else if(ver.equals("1.1")) {
-               version = "1.1";
-           } else {
-               isValidRequest = false;
-           }
-        }
-        if(requests.length != 3) {
-          isValidRequest = false;
-        } else {
-          file = requests[1].substring(1);
-        }
-
-        //parse headers
-        headers = new HashMap<String, String>();
-        for(int i = 1; i < lines.length; i++) {
-            String[] keyValue = lines[i].split(":");
-            headers.put(keyValue[0].trim().toLowerCase(), keyValue[1].trim().toLowerCase());
-        }
-
-        if(!headers.containsKey("host") && version == "1.1") {
-          isValidRequest = false;
-        }
-        
-        return isValidRequest;
-    }
-    
-    
-    /**
-     * Reads a single request from the socket
-     * @param  client Socket that handles the client connection
-     * @return new HTTPRequest of the parsed request
-     * @throws IOException 
-     */
-    public boolean readRequest(Socket client) throws IOException {
-        BufferedReader br = new BufferedReader(new InputStreamReader(client.getInputStream()));
-        StringBuilder request = new StringBuilder();
-        String l;
-        while ((l = br.readLine()) != null && !(l.equals(""))) {
-            request.append(l);
-            request.append("\n");
-        }
-        //get data
-        boolean isRequestParsed = parseRequest(request.toString());
-        if(isRequestParsed) {
-            return true;
-        } else {
-            return false;
-        }
-
-    }
-}
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.lang.reflect.Method;
 
+public class WebServer {
+    // "blocking" serves one connection at a time on the accept thread,
+    // "threaded" hands every accepted connection to its own task,
+    // "nio" multiplexes all connections over a few selector threads
+    private String engine = "blocking";
+    // upper bound on connections that are served at the same time
+    private int maxConnections = 1024;
+    // number of selector threads used by the nio engine
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    // byte budget of the file cache, 0 disables caching
+    private long cacheBytes = 64L * 1024 * 1024;
+    // files larger than this are streamed instead of cached
+    private long cacheMaxEntryBytes = 1024 * 1024;
+    // how long a cached file is served before checking it on disk again
+    private long revalidateMillis = 1000;
+    private FileCache fileCache;
+    // files of at least this size are served from memory mappings, 0 disables mapping
+    private long mmapMinBytes = 0;
+    // upper bound for the bytes mapped at the same time
+    private long mmapMaxBytes = 1024L * 1024 * 1024;
+    private MappedFiles mappedFiles;
+    // keep-alive connections without a request for this long are closed
+    private int idleTimeoutMillis = 2000;
+    // a connection is closed after answering this many requests
+    private int maxRequestsPerConnection = 1000;
+    private final ServerMetrics metrics = new ServerMetrics();
+    // whether GET /metrics answers with the metrics instead of a file
+    private boolean metricsEndpoint = true;
+    // access log file, null disables the access log
+    private String accessLogPath = null;
+    private long accessLogMaxBytes = 64L * 1024 * 1024;
+    private int accessLogFiles = 5;
+    private int accessLogBuffer = 8192;
+    // whether requests wait for the log writer when its buffer is full instead of dropping records
+    private boolean accessLogBlock = false;
+    private AccessLog accessLog;
 
+    private static final byte[] STATUS_200_HTTP10 = "HTTP/1.0 200 OK\r\n".getBytes();
+    private static final byte[] STATUS_200_HTTP11 = "HTTP/1.1 200 OK\r\n".getBytes();
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes();
+    private static final byte[] CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes();
+    // size of the buffer a connection receives requests into, a request head has to fit into it
+    static final int REQUEST_BUFFER_SIZE = 8192;
+    // requests with more ranges than this get the whole file
+    static final int MAX_RANGES = 16;
+    // separates the parts of multipart/byteranges responses
+    private static final String BOUNDARY = "CS2105_" + Long.toHexString(new java.util.Random().nextLong());
 
-public class WebServer {
     public static void main(String[] args) throws IOException {
       int port = 80;
+      WebServer serverInstance = new WebServer();
         try {
           port = Integer.parseInt(args[0]);
+          serverInstance.parseOptions(args);
         } catch (Exception e) {
-          System.out.println("Usage: java webserver <port>");
+          System.out.println("Usage: java webserver <port> [-engine blocking|threaded|nio] [-maxConnections <n>] [-eventLoops <n>]"
+              + " [-cacheBytes <n>] [-cacheMaxEntry <n>] [-revalidateMillis <n>]"
+              + " [-mmapMinBytes <n>] [-mmapMaxBytes <n>]"
+              + " [-idleTimeoutMillis <n>] [-maxRequests <n>] [-metrics true|false]"
+              + " [-accessLog <file>] [-accessLogMaxBytes <n>] [-accessLogFiles <n>]"
+              + " [-accessLogBuffer <n>] [-accessLogPolicy drop|block]");
           System.exit(1);
         }
 
-        WebServer serverInstance = new WebServer();
         serverInstance.start(port);
     }
 
-    private void start(int port) throws IOException {
-      System.out.println("Starting server on port " + port);
-      ServerSocket serverSocket = new ServerSocket(port);
+    /**
+     * Parses the optional "-name value" arguments that follow the port
+     * @param  args the command line arguments
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value
+     */
+    void parseOptions(String[] args) {
+      for(int i = 1; i < args.length; i += 2) {
+        if(i + 1 >= args.length) {
+          throw new IllegalArgumentException("Missing value for " + args[i]);
+        }
+        String value = args[i + 1];
+        switch(args[i]) {
+          case "-engine":
+            if(!value.equals("blocking") && !value.equals("threaded") && !value.equals("nio")) {
+              throw new IllegalArgumentException("Unknown engine " + value);
+            }
+            engine = value;
+            break;
+          case "-maxConnections":
+            maxConnections = Integer.parseInt(value);
+            if(maxConnections < 1) {
+              throw new IllegalArgumentException("maxConnections must be positive");
+            }
+            break;
+          case "-eventLoops":
+            eventLoops = Integer.parseInt(value);
+            if(eventLoops < 1) {
+              throw new IllegalArgumentException("eventLoops must be positive");
+            }
+            break;
+          case "-cacheBytes":
+            cacheBytes = Long.parseLong(value);
+            break;
+          case "-cacheMaxEntry":
+            cacheMaxEntryBytes = Long.parseLong(value);
+            break;
+          case "-revalidateMillis":
+            revalidateMillis = Long.parseLong(value);
+            break;
+          case "-mmapMinBytes":
+            mmapMinBytes = Long.parseLong(value);
+            break;
+          case "-mmapMaxBytes":
+            mmapMaxBytes = Long.parseLong(value);
+            break;
+          case "-idleTimeoutMillis":
+            idleTimeoutMillis = Integer.parseInt(value);
+            if(idleTimeoutMillis < 1) {
+              throw new IllegalArgumentException("idleTimeoutMillis must be positive");
+            }
+            break;
+          case "-maxRequests":
+            maxRequestsPerConnection = Integer.parseInt(value);
+            if(maxRequestsPerConnection < 1) {
+              throw new IllegalArgumentException("maxRequests must be positive");
+            }
+            break;
+          case "-metrics":
+            metricsEndpoint = Boolean.parseBoolean(value);
+            break;
+          case "-accessLog":
+            accessLogPath = value;
+            break;
+          case "-accessLogMaxBytes":
+            accessLogMaxBytes = Long.parseLong(value);
+            break;
+          case "-accessLogFiles":
+            accessLogFiles = Integer.parseInt(value);
+            break;
+          case "-accessLogBuffer":
+            accessLogBuffer = Integer.parseInt(value);
+            if(accessLogBuffer < 1) {
+              throw new IllegalArgumentException("accessLogBuffer must be positive");
+            }
+            break;
+          case "-accessLogPolicy":
+            if(!value.equals("drop") && !value.equals("block")) {
+              throw new IllegalArgumentException("Unknown access log policy " + value);
+            }
+            accessLogBlock = value.equals("block");
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+      }
+    }
+
+    void start(int port) throws IOException {
+      System.out.println("Starting server on port " + port + " (" + engine + ")");
+      setUpFileStores();
+      setUpAccessLog();
+      if(engine.equals("nio")) {
+        new NioEngine(this, eventLoops, idleTimeoutMillis, maxRequestsPerConnection).start(port);
+        return;
+      }
+      // sockets accepted through a channel can send files with sendfile
+      ServerSocket serverSocket = ServerSocketChannel.open().socket();
+      serverSocket.bind(new InetSocketAddress(port));
+
+      if(engine.equals("threaded")) {
+        serveConcurrently(serverSocket);
+        return;
+      }
 
       // set up the sockets and then call handleRequests.
       while(true) {
@@ -141,30 +190,182 @@ public class WebServer {
     }
 
     /**
-     * Handles requests sent by a client
-     * @param  client Socket that handles the client connection
+     * Creates the file cache and the memory mapping registry as configured
+     */
+    void setUpFileStores() {
+      if(cacheBytes > 0) {
+        fileCache = new FileCache(cacheBytes, cacheMaxEntryBytes, revalidateMillis);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+          public void run() {
+            System.out.println("File cache: " + fileCache.getHits() + " hits, "
+                + fileCache.getMisses() + " misses, " + fileCache.getEvictions() + " evictions");
+          }
+        });
+      }
+      if(mmapMinBytes > 0) {
+        mappedFiles = new MappedFiles(mmapMinBytes, mmapMaxBytes, revalidateMillis);
+      }
+    }
+
+    /**
+     * Opens the access log if one is configured
+     * @throws IOException if the log file cannot be opened
+     */
+    void setUpAccessLog() throws IOException {
+      if(accessLogPath == null) {
+        return;
+      }
+      accessLog = new AccessLog(Paths.get(accessLogPath), accessLogMaxBytes, accessLogFiles, accessLogBuffer, accessLogBlock);
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() {
+          accessLog.close();
+          if(accessLog.getDropped() > 0) {
+            System.out.println("Access log: " + accessLog.getDropped() + " records dropped");
+          }
+        }
+      });
+    }
+
+    /**
+     * Records an answered request in the access log, if there is one
+     * @param  client address of the client
+     * @param  request the request, null if it could not be parsed
+     * @param  response the response to it
+     */
+    void logAccess(InetAddress client, HTTPRequest request, HTTPResponse response) {
+      if(accessLog != null) {
+        accessLog.log(client, request, response);
+      }
+    }
+
+    /**
+     * Accepts connections and serves each of them on its own task.
+     * At most maxConnections connections are served at the same time,
+     * further clients wait in the listen backlog until a slot frees up.
+     * @param  serverSocket the listening socket
      * @throws IOException 
      */
-    private void handleRequests(Socket client) throws IOException {
-        HTTPRequest request = new HTTPRequest();
-        boolean isValidRequest = request.readRequest(client);
-        byte[] response;
-        if(isValidRequest) {
-            response = getResponse(request);
-        } else {
-            response = get400Response(request);
+    private void serveConcurrently(ServerSocket serverSocket) throws IOException {
+      ExecutorService executor = newConnectionExecutor();
+      Semaphore slots = new Semaphore(maxConnections);
+      while(true) {
+        slots.acquireUninterruptibly();
+        Socket clientSocket;
+        try {
+          clientSocket = serverSocket.accept();
+        } catch(IOException e) {
+          slots.release();
+          throw e;
         }
-        sendResponse(client, response);
-        boolean isPersistent = request.getVersion().equals("1.1");
-        if(isPersistent) {              
-          try {
-              client.setSoTimeout(2000);
+        executor.execute(() -> {
+          try (
+              Socket client = clientSocket;
+          ) {
               handleRequests(client);
-          } catch(Exception e) {
-              
+          } catch(IOException e) {
+              // the client went away, nothing left to answer
+          } finally {
+              slots.release();
           }
+        });
+      }
+    }
+
+    /**
+     * Creates the executor that runs one task per connection.
+     * Uses a virtual thread per task when the JVM provides them (Java 21+),
+     * otherwise a pool that never grows beyond maxConnections threads.
+     * @return the executor for connection tasks
+     */
+    private ExecutorService newConnectionExecutor() {
+      try {
+        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        return (ExecutorService) factory.invoke(null);
+      } catch(ReflectiveOperationException e) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConnections, maxConnections,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+      }
+    }
+
+    /**
+     * Handles requests sent by a client until the connection is closed.
+     * All requests are received into one buffer, so requests that the
+     * client pipelines behind each other are answered in order.
+     * @param  client Socket that handles the client connection
+     * @throws IOException 
+     */
+    private void handleRequests(Socket client) throws IOException {
+        metrics.connectionOpened();
+        try {
+            serveConnection(client);
+        } finally {
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * The request loop of handleRequests
+     * @param  client Socket that handles the client connection
+     * @throws IOException
+     */
+    private void serveConnection(Socket client) throws IOException {
+        client.setSoTimeout(idleTimeoutMillis);
+        InputStream in = client.getInputStream();
+        byte[] buffer = new byte[REQUEST_BUFFER_SIZE];
+        // received bytes are buffer[start] to buffer[end - 1]
+        int start = 0;
+        int end = 0;
+        int served = 0;
+        HTTPRequest request = new HTTPRequest();
+        while(true) {
+            long parseStart = System.nanoTime();
+            int headEnd = request.parse(buffer, start, end);
+            if(headEnd < 0) {
+                if(start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                }
+                if(end == buffer.length) {
+                    // the request head does not fit into the buffer
+                    HTTPResponse response = get400Response(request);
+                    logAccess(client.getInetAddress(), null, response);
+                    sendResponse(client, response);
+                    return;
+                }
+                int read;
+                try {
+                    read = in.read(buffer, end, buffer.length - end);
+                } catch(SocketTimeoutException e) {
+                    return;
+                }
+                if(read < 0) {
+                    return;
+                }
+                end += read;
+                continue;
+            }
+            long received = System.nanoTime();
+            metrics.requestParsed(received - parseStart);
+            served++;
+            boolean keepAlive = request.isPersistent() && served < maxRequestsPerConnection;
+            HTTPResponse response;
+            if(request.isValid()) {
+                response = getResponse(request, keepAlive);
+            } else {
+                response = get400Response(request);
+                keepAlive = false;
+            }
+            response.setReceivedNanos(received);
+            logAccess(client.getInetAddress(), request, response);
+            start = headEnd;
+            sendResponse(client, response);
+            if(!keepAlive) {
+                return;
+            }
         }
-        
     }
 
 
@@ -174,78 +375,465 @@ public class WebServer {
      * @param  response the response that should be send to the client
      * @throws IOException 
      */
-    private void sendResponse(Socket client, byte[] response) throws IOException {
-      BufferedOutputStream bo = new BufferedOutputStream(client.getOutputStream());
-      bo.write(response);
-      bo.flush();
+    private void sendResponse(Socket client, HTTPResponse response) throws IOException {
+      WritableByteChannel channel = client.getChannel();
+      if(channel == null) {
+        channel = Channels.newChannel(client.getOutputStream());
+      }
+      try {
+        while(!response.writeTo(channel)) {
+          // a blocking channel only comes back short on transferTo, just go on
+        }
+        metrics.responseSent(response);
+      } finally {
+        response.release();
+      }
     }
 
     /**
      * Get a response to an HTTPRequest
      * @param  request the HTTP request
-     * @return a byte[] that contains the data that should be send to the client
+     * @param  keepAlive whether the connection stays open after this response
+     * @return the response that should be send to the client
      */
-    private byte[] getResponse(HTTPRequest request) {
-      String filePath = request.getFilePath();
-      byte[] fileContent;
+    HTTPResponse getResponse(HTTPRequest request, boolean keepAlive) {
+      if(metricsEndpoint && request.getFilePath().equals(ServerMetrics.PATH)) {
+        return getMetricsResponse(request, keepAlive);
+      }
+      Resource resource;
+      long openStart = System.nanoTime();
       try {
-        fileContent = getFileContent(filePath);
+        resource = openResource(request);
       } catch (Exception e) {
-        return get404Response(request);
-        
-      }
-      StringBuilder sb = new StringBuilder();
-      sb.append("HTTP/");
-      sb.append(request.getVersion()+" ");
-      sb.append("200 OK\r\n");
-      sb.append("\r\n");
-      return concatenate(sb.toString().getBytes(), fileContent);
+        return get404Response(request, keepAlive);
+      } finally {
+        metrics.fileOpened(System.nanoTime() - openStart);
+      }
+      if(isNotModified(request, resource)) {
+        resource.release();
+        return new HTTPResponse(304, getHead(request, "304 Not Modified", -1, keepAlive, resource.getValidators()
+            + (HTTPResponse.isCompressible(resource.contentType) ? "Vary: Accept-Encoding\r\n" : "")));
+      }
+
+      List<long[]> ranges = getRanges(request, resource);
+      if(ranges == null && resource.entry != null) {
+        // everything but the status line and Connection is encoded already
+        byte[] statusLine = request.getVersion().equals("1.0") ? STATUS_200_HTTP10 : STATUS_200_HTTP11;
+        HTTPResponse response = new HTTPResponse(200, statusLine);
+        response.addBody(ByteBuffer.wrap(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE));
+        response.addBody(ByteBuffer.wrap(resource.entry.response));
+        return response;
+      }
+      if(ranges == null) {
+        HTTPResponse response = new HTTPResponse(200, getHead(request, "200 OK", resource.size, keepAlive,
+            resource.getHeaders() + "Accept-Ranges: bytes\r\n"));
+        resource.addRange(response, 0, resource.size, true);
+        return response;
+      }
+      if(ranges.isEmpty()) {
+        resource.release();
+        return new HTTPResponse(416, getHead(request, "416 Range Not Satisfiable", 0, keepAlive,
+            "Content-Range: bytes */" + resource.size + "\r\n"));
+      }
+      if(ranges.size() == 1) {
+        long[] range = ranges.get(0);
+        HTTPResponse response = new HTTPResponse(206, getHead(request, "206 Partial Content", range[1] - range[0] + 1, keepAlive,
+            resource.getHeaders() + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + resource.size + "\r\n"));
+        resource.addRange(response, range[0], range[1] - range[0] + 1, true);
+        return response;
+      }
+
+      // several ranges are sent as multipart/byteranges, each with its own part header
+      byte[][] partHeads = new byte[ranges.size()][];
+      byte[] closing = ("\r\n--" + BOUNDARY + "--\r\n").getBytes();
+      long contentLength = closing.length;
+      for(int i = 0; i < ranges.size(); i++) {
+        long[] range = ranges.get(i);
+        partHeads[i] = ("\r\n--" + BOUNDARY + "\r\n"
+            + "Content-Type: " + resource.contentType + "\r\n"
+            + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + resource.size + "\r\n"
+            + "\r\n").getBytes();
+        contentLength += partHeads[i].length + range[1] - range[0] + 1;
+      }
+      HTTPResponse response = new HTTPResponse(206, getHead(request, "206 Partial Content", contentLength, keepAlive,
+          resource.getValidators() + (resource.contentEncoding != null ? "Content-Encoding: " + resource.contentEncoding + "\r\n" : "")
+          + "Content-Type: multipart/byteranges; boundary=" + BOUNDARY + "\r\n"));
+      for(int i = 0; i < ranges.size(); i++) {
+        long[] range = ranges.get(i);
+        response.addBody(ByteBuffer.wrap(partHeads[i]));
+        resource.addRange(response, range[0], range[1] - range[0] + 1, i == ranges.size() - 1);
+      }
+      response.addBody(ByteBuffer.wrap(closing));
+      return response;
     }
 
+    /**
+     * Finds the body of the requested file. Clients that accept gzip get a
+     * precompressed ".gz" sibling if there is one, otherwise a compressed
+     * variant from the cache if the file is compressible. The plain file
+     * comes from the cache, from a memory mapping or straight from the
+     * file system, in this order.
+     * @param  request the HTTP request
+     * @return the opened resource, which has to be released by adding its
+     *         last range to a response or by calling release()
+     * @throws Exception if the file does not exist or cannot be read
+     */
+    private Resource openResource(HTTPRequest request) throws Exception {
+      Path path = Paths.get(request.getFilePath()).toAbsolutePath().normalize();
+      String contentType = HTTPResponse.getContentType(path.getFileName() == null ? "" : path.getFileName().toString());
+      if(HTTPResponse.isCompressible(contentType) && acceptsGzip(request)) {
+        Path precompressed = path.resolveSibling(path.getFileName() + ".gz");
+        // most files have no precompressed variant, the cache remembers which
+        if(fileCache == null || !fileCache.isMissing(precompressed, "gzip")) {
+          try {
+            return openResource(precompressed, contentType, "gzip");
+          } catch (NoSuchFileException e) {
+            // no precompressed variant, fall back to compressing in memory
+          }
+        }
+        if(fileCache != null) {
+          FileCache.Entry entry = fileCache.getCompressed(path, contentType);
+          if(entry != null) {
+            return new Resource(entry);
+          }
+        }
+      }
+      return openResource(path, contentType, null);
+    }
 
     /**
-     * Get a 404 response for a HTTPRequest
-     * @param  request a HTTP request
-     * @return a byte[] that contains the data that should be send to the client
+     * Opens a file from the cache, from a memory mapping or straight from
+     * the file system, in this order
+     * @param  path normalized absolute path of the file
+     * @param  contentType media type of the representation
+     * @param  contentEncoding encoding of the file, null if it is not encoded
+     * @throws Exception if the file does not exist or cannot be read
+     */
+    private Resource openResource(Path path, String contentType, String contentEncoding) throws Exception {
+      if(fileCache != null) {
+        FileCache.Entry entry = fileCache.get(path, contentType, contentEncoding);
+        if(entry != null) {
+          return new Resource(entry);
+        }
+      }
+      if(mappedFiles != null) {
+        MappedFiles.Mapping mapping = mappedFiles.acquire(path);
+        if(mapping != null) {
+          return new Resource(mapping, contentType, contentEncoding);
+        }
+      }
+      FileChannel file = openFile(path.toString());
+      try {
+        return new Resource(file, file.size(), Files.getLastModifiedTime(path).toMillis(), contentType, contentEncoding);
+      } catch (IOException e) {
+        file.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Checks if a client accepts gzip encoded responses,
+     * e.g. "Accept-Encoding: gzip, deflate" but not "gzip;q=0"
+     */
+    private boolean acceptsGzip(HTTPRequest request) {
+      String acceptEncoding = request.getHeaderValue("accept-encoding");
+      if(acceptEncoding == null) {
+        return false;
+      }
+      for(String coding : acceptEncoding.split(",")) {
+        String[] parameters = coding.split(";");
+        String name = parameters[0].trim();
+        if(!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+          continue;
+        }
+        for(int i = 1; i < parameters.length; i++) {
+          String parameter = parameters[i].trim();
+          if(parameter.startsWith("q=")) {
+            try {
+              return Double.parseDouble(parameter.substring(2)) > 0;
+            } catch (NumberFormatException e) {
+              return false;
+            }
+          }
+        }
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Checks the conditional headers of a request. If-None-Match takes
+     * precedence over If-Modified-Since.
+     * @return true if the client's copy is still valid and a 304 is enough
+     */
+    private boolean isNotModified(HTTPRequest request, Resource resource) {
+      String ifNoneMatch = request.getHeaderValue("if-none-match");
+      if(ifNoneMatch != null) {
+        for(String tag : ifNoneMatch.split(",")) {
+          tag = tag.trim();
+          if(tag.startsWith("W/")) {
+            tag = tag.substring(2);
+          }
+          if(tag.equals("*") || tag.equals(resource.etag)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      String ifModifiedSince = request.getHeaderValue("if-modified-since");
+      if(ifModifiedSince != null) {
+        long since = HTTPResponse.parseDate(ifModifiedSince);
+        // Last-Modified only has a precision of seconds
+        return since >= 0 && resource.lastModified / 1000 <= since / 1000;
+      }
+      return false;
+    }
+
+    /**
+     * Parses the Range header of a request, e.g. "bytes=0-99,200-,-50"
+     * @return null if the whole file should be sent, otherwise the
+     *         satisfiable ranges as {first byte, last byte}, possibly none
+     */
+    private List<long[]> getRanges(HTTPRequest request, Resource resource) {
+      String range = request.getHeaderValue("range");
+      if(range == null || !range.startsWith("bytes=")) {
+        return null;
+      }
+      String ifRange = request.getHeaderValue("if-range");
+      if(ifRange != null && !ifRange.equals(resource.etag)
+          && HTTPResponse.parseDate(ifRange) / 1000 != resource.lastModified / 1000) {
+        // the client's copy is outdated, it needs the whole file
+        return null;
+      }
+      String[] specs = range.substring(6).split(",");
+      if(specs.length > MAX_RANGES) {
+        return null;
+      }
+      List<long[]> ranges = new ArrayList<long[]>();
+      for(String spec : specs) {
+        spec = spec.trim();
+        int dash = spec.indexOf('-');
+        if(dash < 0) {
+          return null;
+        }
+        long first;
+        long last;
+        try {
+          if(dash == 0) {
+            // the last n bytes
+            long suffix = Long.parseLong(spec.substring(1));
+            first = Math.max(0, resource.size - suffix);
+            last = resource.size - 1;
+            if(suffix == 0) {
+              continue;
+            }
+          } else {
+            first = Long.parseLong(spec.substring(0, dash));
+            last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+          }
+        } catch (NumberFormatException e) {
+          return null;
+        }
+        if(first < 0 || last < first) {
+          return null;
+        }
+        if(first >= resource.size) {
+          continue;
+        }
+        ranges.add(new long[] {first, Math.min(last, resource.size - 1)});
+      }
+      return ranges;
+    }
+
+    /**
+     * The body of a requested file and what the client needs to validate it.
+     * Exactly one of entry, mapping and file is set.
      */
-    private byte[] get404Response(HTTPRequest request) {
+    private static class Resource {
+      final FileCache.Entry entry;
+      final MappedFiles.Mapping mapping;
+      final FileChannel file;
+      final long size;
+      final long lastModified;
+      final String etag;
+      final String contentType;
+      // null if the body is not encoded
+      final String contentEncoding;
+
+      Resource(FileCache.Entry entry) {
+        this(entry, null, null, entry.size, entry.lastModified, entry.etag, entry.contentType, entry.contentEncoding);
+      }
+
+      Resource(MappedFiles.Mapping mapping, String contentType, String contentEncoding) {
+        this(null, mapping, null, mapping.size, mapping.lastModified,
+            HTTPResponse.getETag(mapping.size, mapping.lastModified), contentType, contentEncoding);
+      }
+
+      Resource(FileChannel file, long size, long lastModified, String contentType, String contentEncoding) {
+        this(null, null, file, size, lastModified, HTTPResponse.getETag(size, lastModified), contentType, contentEncoding);
+      }
+
+      private Resource(FileCache.Entry entry, MappedFiles.Mapping mapping, FileChannel file,
+          long size, long lastModified, String etag, String contentType, String contentEncoding) {
+        this.entry = entry;
+        this.mapping = mapping;
+        this.file = file;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.etag = etag;
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+      }
+
+      /**
+       * @return the ETag and Last-Modified headers
+       */
+      String getValidators() {
+        return "ETag: " + etag + "\r\n" + "Last-Modified: " + HTTPResponse.formatDate(lastModified) + "\r\n";
+      }
+
+      /**
+       * @return the headers that describe the body: type, encoding and validators
+       */
+      String getHeaders() {
         StringBuilder sb = new StringBuilder();
-        sb.append("HTTP/");
-        sb.append(request.getVersion()+" ");
-        sb.append("404 Not Found\r\n");
-        sb.append("\r\n");
-        sb.append(get404Content(request.getFilePath()));
-        return sb.toString().getBytes();
+        sb.append("Content-Type: " + contentType + "\r\n");
+        if(contentEncoding != null) {
+          sb.append("Content-Encoding: " + contentEncoding + "\r\n");
+        }
+        if(HTTPResponse.isCompressible(contentType)) {
+          sb.append("Vary: Accept-Encoding\r\n");
+        }
+        sb.append(getValidators());
+        return sb.toString();
+      }
+
+      /**
+       * Appends a part of the body to a response
+       * @param  last true for the last range of this resource, the resource
+       *         is released together with it
+       */
+      void addRange(HTTPResponse response, long position, long count, boolean last) {
+        if(entry != null) {
+          response.addBody(ByteBuffer.wrap(entry.response, entry.bodyOffset + (int) position, (int) count));
+        } else if(mapping != null) {
+          ByteBuffer view = mapping.view();
+          view.position((int) position);
+          view.limit((int) (position + count));
+          response.addBody(view, last ? mapping::release : null);
+        } else {
+          response.addBody(file, position, count, last);
+        }
+      }
+
+      void release() {
+        if(mapping != null) {
+          mapping.release();
+        } else if(file != null) {
+          try {
+            file.close();
+          } catch (IOException e) {
+            // the file was only read from
+          }
+        }
+      }
     }
 
     /**
-     * Get a 400 response for a HTTPRequest
-     * @param  request a HTTP request
-     * @return a byte[] that contains the data that should be send to the client
+     * Encodes the status line and the headers of a response
+     * @param  request the HTTP request that is answered
+     * @param  status status code and reason phrase
+     * @param  contentLength length of the body in bytes, -1 to leave it out
+     * @param  keepAlive whether the connection stays open after this response
+     * @return the head including the empty line that ends it
      */
-    private byte[] get400Response(HTTPRequest request) {
+    private byte[] getHead(HTTPRequest request, String status, long contentLength, boolean keepAlive) {
+        return getHead(request, status, contentLength, keepAlive, "");
+    }
+
+    /**
+     * Encodes the status line and the headers of a response
+     * @param  request the HTTP request that is answered
+     * @param  status status code and reason phrase
+     * @param  contentLength length of the body in bytes, -1 to leave it out
+     * @param  keepAlive whether the connection stays open after this response
+     * @param  headers further encoded header lines
+     * @return the head including the empty line that ends it
+     */
+    private byte[] getHead(HTTPRequest request, String status, long contentLength, boolean keepAlive, String headers) {
         StringBuilder sb = new StringBuilder();
         sb.append("HTTP/");
         sb.append(request.getVersion()+" ");
-        sb.append("400 Bad Request\r\n");
+        sb.append(status + "\r\n");
+        if(contentLength >= 0) {
+          sb.append("Content-Length: " + contentLength + "\r\n");
+        }
+        sb.append(headers);
+        sb.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
         sb.append("\r\n");
-        sb.append(get400Content());
         return sb.toString().getBytes();
     }
 
+
     /**
-     * Get the content of a whole file
-     * @param  client Socket that handles the client connection
-     * @return new HTTPRequest of the parsed request
+     * Get a 404 response for a HTTPRequest
+     * @param  request a HTTP request
+     * @param  keepAlive whether the connection stays open after this response
+     * @return the response that should be send to the client
+     */
+    HTTPResponse get404Response(HTTPRequest request, boolean keepAlive) {
+        byte[] content = get404Content(request.getFilePath()).getBytes();
+        HTTPResponse response = new HTTPResponse(404, getHead(request, "404 Not Found", content.length, keepAlive));
+        response.addBody(ByteBuffer.wrap(content));
+        return response;
+    }
+
+    /**
+     * Get the current metrics of the server for a HTTPRequest
+     * @param  request a HTTP request
+     * @param  keepAlive whether the connection stays open after this response
+     * @return the response that should be send to the client
+     */
+    private HTTPResponse getMetricsResponse(HTTPRequest request, boolean keepAlive) {
+        byte[] content = metrics.format(fileCache, mappedFiles, accessLog).getBytes();
+        HTTPResponse response = new HTTPResponse(200, getHead(request, "200 OK", content.length, keepAlive,
+            "Content-Type: " + ServerMetrics.CONTENT_TYPE + "\r\n" + "Cache-Control: no-store\r\n"));
+        response.addBody(ByteBuffer.wrap(content));
+        return response;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get a 400 response for a HTTPRequest.
+     * The connection is closed afterwards since the request boundaries are unknown.
+     * @param  request a HTTP request
+     * @return the response that should be send to the client
      */
-    private byte[] getFileContent(String filename) throws Exception {
-      // We read the whole file into memory. This is bad practice,
-      // but it is good enough for this submission.
-      // In upcoming assignments it might be important to do
-      // it differently.
-      // E.g., it would be better to read a few bytes, write them to
-      // the socket, read the next bytes, write them to the socket, ....
-        return Files.readAllBytes(Paths.get(filename));
+    HTTPResponse get400Response(HTTPRequest request) {
+        byte[] content = get400Content().getBytes();
+        HTTPResponse response = new HTTPResponse(400, getHead(request, "400 Bad Request", content.length, false));
+        response.addBody(ByteBuffer.wrap(content));
+        return response;
+    }
+
+    /**
+     * Opens a file for streaming it to a client
+     * @param  filename path of the requested file
+     * @return a channel positioned at the start of the file
+     * @throws IOException if the file does not exist or is not a regular file
+     */
+    private FileChannel openFile(String filename) throws IOException {
+      // The body is sent straight from the file to the socket in
+      // transferTo sized steps, so a request never needs more heap
+      // than its headers, however large the file is.
+        Path path = Paths.get(filename);
+        if(!Files.isRegularFile(path)) {
+          throw new NoSuchFileException(filename);
+        }
+        return FileChannel.open(path, StandardOpenOption.READ);
     }
 
     /**
@@ -255,7 +843,7 @@ public class WebServer {
      * @param  buffer2 another byte array
      * @return concatenation of the 2 buffers
      */
-    private byte[] concatenate(byte[] buffer1, byte[] buffer2) {
+    byte[] concatenate(byte[] buffer1, byte[] buffer2) {
         byte[] returnBuffer = new byte[buffer1.length + buffer2.length];
         System.arraycopy(buffer1, 0, returnBuffer, 0, buffer1.length);
         System.arraycopy(buffer2, 0, returnBuffer, buffer1.length, buffer2.length);
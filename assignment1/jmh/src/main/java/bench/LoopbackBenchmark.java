@@ -0,0 +1,161 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end requests over loopback: a server runs in the benchmark JVM
+ * and every benchmark thread fetches one file over a keep-alive connection
+ * of its own. Throughput mode gives requests per second, sample time mode
+ * the latency percentiles. Files are served from the working directory, so
+ * run from assignment1.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class LoopbackBenchmark {
+    // time the server gets to start listening
+    static final long START_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * The server, shared by all threads of a run
+     */
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"demo.html", "doge.jpg"})
+        public String file;
+
+        @Param({"threaded", "nio"})
+        public String engine;
+
+        int port;
+
+        @Setup(Level.Trial)
+        public void start() throws Throwable {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            Object server = ServerAccess.NEW_SERVER.invokeExact();
+            // keep the connections open for the whole run
+            ServerAccess.PARSE_OPTIONS.invokeExact(server, new String[] {
+                "0", "-engine", engine, "-maxRequests", Integer.toString(Integer.MAX_VALUE)});
+            Thread thread = new Thread(() -> {
+                try {
+                    ServerAccess.START.invokeExact(server, port);
+                } catch(Throwable e) {
+                    e.printStackTrace();
+                }
+            }, "webserver");
+            // the fork ends with the benchmark, and the server with it
+            thread.setDaemon(true);
+            thread.start();
+            long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+            while(true) {
+                try (Socket socket = new Socket("localhost", port)) {
+                    return;
+                } catch(IOException e) {
+                    if(System.currentTimeMillis() > deadline) {
+                        throw new IOException("Server did not start on port " + port, e);
+                    }
+                    Thread.sleep(10);
+                }
+            }
+        }
+    }
+
+    /**
+     * The keep-alive connection of one thread
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+        byte[] request;
+        final byte[] buffer = new byte[64 * 1024];
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException {
+            socket = new Socket("localhost", server.port);
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+            request = ("GET /" + server.file + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return the size of the body
+     */
+    @Benchmark
+    public long fetch(Client client) throws IOException {
+        client.out.write(client.request);
+        return readResponse(client.in, client.buffer);
+    }
+
+    /**
+     * Reads one response, using its Content-Length to find where it ends
+     * @return the Content-Length
+     */
+    static long readResponse(InputStream in, byte[] buffer) throws IOException {
+        int filled = 0;
+        int headEnd = -1;
+        while(headEnd < 0) {
+            int read = in.read(buffer, filled, buffer.length - filled);
+            if(read < 0) {
+                throw new IOException("Connection closed in the middle of a response");
+            }
+            int from = Math.max(3, filled);
+            filled += read;
+            for(int i = from; i < filled; i++) {
+                if(buffer[i] == '\n' && buffer[i - 1] == '\r' && buffer[i - 2] == '\n' && buffer[i - 3] == '\r') {
+                    headEnd = i + 1;
+                    break;
+                }
+            }
+        }
+        String head = new String(buffer, 0, headEnd, StandardCharsets.ISO_8859_1).toLowerCase();
+        if(!head.startsWith("http/1.1 200")) {
+            throw new IOException("Unexpected response " + head.substring(0, head.indexOf('\r')));
+        }
+        int index = head.indexOf("content-length:");
+        long length = Long.parseLong(head.substring(index + 15, head.indexOf('\r', index)).trim());
+        long remaining = length - (filled - headEnd);
+        while(remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if(read < 0) {
+                throw new IOException("Connection closed in the middle of a response");
+            }
+            remaining -= read;
+        }
+        return length;
+    }
+}
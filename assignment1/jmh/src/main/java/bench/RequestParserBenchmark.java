@@ -0,0 +1,64 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * HTTPRequest parsing of a typical browser request, from the bytes the
+ * engines read and from the String form of parseRequest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RequestParserBenchmark {
+    static final String REQUEST = "GET /demo.html HTTP/1.1\r\n"
+        + "Host: localhost:8080\r\n"
+        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+        + "Accept-Language: en-US,en;q=0.5\r\n"
+        + "Accept-Encoding: gzip, deflate, br\r\n"
+        + "Connection: keep-alive\r\n"
+        + "\r\n";
+
+    private byte[] head;
+    private String lines;
+    private Object request;
+
+    @Setup
+    public void setUp() throws Throwable {
+        head = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        lines = REQUEST.replace("\r", "");
+        request = ServerAccess.NEW_REQUEST.invokeExact();
+    }
+
+    @Benchmark
+    public int parseBytes() throws Throwable {
+        return (int) ServerAccess.PARSE.invokeExact(request, head, 0, head.length);
+    }
+
+    @Benchmark
+    public void parseBytesAndLookUpHost(Blackhole blackhole) throws Throwable {
+        blackhole.consume((int) ServerAccess.PARSE.invokeExact(request, head, 0, head.length));
+        blackhole.consume((String) ServerAccess.GET_HEADER_VALUE.invokeExact(request, "host"));
+    }
+
+    @Benchmark
+    public boolean parseRequest() throws Throwable {
+        return (boolean) ServerAccess.PARSE_REQUEST.invokeExact(request, lines);
+    }
+}
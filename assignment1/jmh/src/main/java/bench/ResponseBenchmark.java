@@ -0,0 +1,97 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Response construction of WebServer: a cached file with and without
+ * writing it out, the 404 page and concatenate. Files are served from the
+ * working directory, so run from assignment1.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ResponseBenchmark {
+    private Object server;
+    private Object request;
+    private Object missing;
+    private byte[] header;
+    private byte[] body;
+    private DiscardingChannel channel;
+
+    /**
+     * A channel that throws away what is written to it
+     */
+    static class DiscardingChannel implements WritableByteChannel {
+        public int write(ByteBuffer source) {
+            int length = source.remaining();
+            source.position(source.limit());
+            return length;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setUp() throws Throwable {
+        server = ServerAccess.NEW_SERVER.invokeExact();
+        ServerAccess.PARSE_OPTIONS.invokeExact(server, new String[] {"0"});
+        ServerAccess.SET_UP_FILE_STORES.invokeExact(server);
+        request = ServerAccess.NEW_REQUEST.invokeExact();
+        boolean valid = (boolean) ServerAccess.PARSE_REQUEST.invokeExact(request, "GET /demo.html HTTP/1.1\nHost: localhost\n");
+        missing = ServerAccess.NEW_REQUEST.invokeExact();
+        valid &= (boolean) ServerAccess.PARSE_REQUEST.invokeExact(missing, "GET /missing.html HTTP/1.1\nHost: localhost\n");
+        if(!valid) {
+            throw new IllegalStateException("Could not parse the benchmark requests");
+        }
+        header = "HTTP/1.1 200 OK\r\n\r\n".getBytes();
+        body = new byte[4096];
+        channel = new DiscardingChannel();
+    }
+
+    @Benchmark
+    public void getResponse(Blackhole blackhole) throws Throwable {
+        Object response = ServerAccess.GET_RESPONSE.invokeExact(server, request, true);
+        blackhole.consume(response);
+        ServerAccess.RELEASE.invokeExact(response);
+    }
+
+    @Benchmark
+    public boolean getResponseAndWrite() throws Throwable {
+        Object response = ServerAccess.GET_RESPONSE.invokeExact(server, request, true);
+        boolean written = (boolean) ServerAccess.WRITE_TO.invokeExact(response, (WritableByteChannel) channel);
+        ServerAccess.RELEASE.invokeExact(response);
+        return written;
+    }
+
+    @Benchmark
+    public Object get404Response() throws Throwable {
+        return (Object) ServerAccess.GET_404_RESPONSE.invokeExact(server, missing, true);
+    }
+
+    @Benchmark
+    public byte[] concatenate4k() throws Throwable {
+        return (byte[]) ServerAccess.CONCATENATE.invokeExact(server, header, body);
+    }
+}
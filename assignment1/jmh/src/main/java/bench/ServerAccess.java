@@ -0,0 +1,90 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The package-private WebServer classes, as seen from the benchmarks.
+ * JMH does not take benchmarks in the default package, and code in a named
+ * package cannot name a class in the default package, so the benchmarks
+ * call into the server through method handles typed with Object. The
+ * handles are static final, so the JIT inlines them like direct calls.
+ */
+final class ServerAccess {
+    static final MethodHandle NEW_REQUEST;
+    static final MethodHandle PARSE;
+    static final MethodHandle PARSE_REQUEST;
+    static final MethodHandle GET_HEADER_VALUE;
+
+    static final MethodHandle NEW_SERVER;
+    static final MethodHandle PARSE_OPTIONS;
+    static final MethodHandle SET_UP_FILE_STORES;
+    static final MethodHandle START;
+    static final MethodHandle GET_RESPONSE;
+    static final MethodHandle GET_404_RESPONSE;
+    static final MethodHandle CONCATENATE;
+
+    static final MethodHandle WRITE_TO;
+    static final MethodHandle RELEASE;
+
+    static {
+        try {
+            Class<?> request = Class.forName("HTTPRequest");
+            Class<?> server = Class.forName("WebServer");
+            Class<?> response = Class.forName("HTTPResponse");
+
+            NEW_REQUEST = constructor(request);
+            PARSE = method(request, "parse", int.class, byte[].class, int.class, int.class);
+            PARSE_REQUEST = method(request, "parseRequest", boolean.class, String.class);
+            GET_HEADER_VALUE = method(request, "getHeaderValue", String.class, String.class);
+
+            NEW_SERVER = constructor(server);
+            PARSE_OPTIONS = method(server, "parseOptions", void.class, String[].class);
+            SET_UP_FILE_STORES = method(server, "setUpFileStores", void.class);
+            START = method(server, "start", void.class, int.class);
+            GET_RESPONSE = method(server, "getResponse", Object.class, request, boolean.class);
+            GET_404_RESPONSE = method(server, "get404Response", Object.class, request, boolean.class);
+            CONCATENATE = method(server, "concatenate", byte[].class, byte[].class, byte[].class);
+
+            WRITE_TO = method(response, "writeTo", boolean.class, WritableByteChannel.class);
+            RELEASE = method(response, "release", void.class);
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private ServerAccess() {
+    }
+
+    /**
+     * @return a handle of type () Object
+     */
+    private static MethodHandle constructor(Class<?> owner) throws ReflectiveOperationException {
+        Constructor<?> constructor = owner.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return MethodHandles.lookup().unreflectConstructor(constructor)
+            .asType(MethodType.methodType(Object.class));
+    }
+
+    /**
+     * @param  returnType the type the handle returns, Object for a server class
+     * @param  parameters the declared parameter types of the method
+     * @return a handle of type (Object, parameters with server classes as Object) returnType
+     */
+    private static MethodHandle method(Class<?> owner, String name, Class<?> returnType, Class<?>... parameters)
+            throws ReflectiveOperationException {
+        Method method = owner.getDeclaredMethod(name, parameters);
+        method.setAccessible(true);
+        Class<?>[] erased = new Class<?>[parameters.length + 1];
+        erased[0] = Object.class;
+        for(int i = 0; i < parameters.length; i++) {
+            // the server classes are the ones in the default package
+            erased[i + 1] = parameters[i].getPackageName().isEmpty() ? Object.class : parameters[i];
+        }
+        return MethodHandles.lookup().unreflect(method).asType(MethodType.methodType(returnType, erased));
+    }
+}
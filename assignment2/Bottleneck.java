@@ -0,0 +1,114 @@
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Bottleneck link of one direction of UnreliNET: a token bucket that
+ * limits the rate, in front of a FIFO queue of limited size.
+ * The bucket fills at the link rate up to its burst size and a packet
+ * leaves once the bucket holds as many bytes as the packet. Departure
+ * times follow from that directly, so the queue needs no thread of its
+ * own: a packet is handed to the delay line with its departure time
+ * plus the propagation delay. The queue holds the packets that have not
+ * departed yet. A packet that arrives at a full queue is dropped at the
+ * tail, and with RED it may be dropped early, with a probability that
+ * grows with the average queue length (Floyd and Jacobson, 1993).
+ * Shared by all flows of the direction, so its methods are synchronized.
+ */
+class Bottleneck {
+    // weight of a new sample in the RED average
+    static final double RED_WEIGHT = 0.002;
+    static final double RED_MAX_PROBABILITY = 0.1;
+
+    private final double bytesPerNano;
+    private final long burst;
+    private final int capacity;
+    private final boolean red;
+    private final Random random;
+    // departure times of the packets in the queue, oldest first
+    private final ArrayDeque<Long> departures = new ArrayDeque<>();
+    private double tokens;
+    private long tokensAt;
+    private long lastDeparture = 0;
+    private double averageQueue = 0;
+
+    private long queueDrops = 0;
+    private long earlyDrops = 0;
+    private long admitted = 0;
+    private long queueSum = 0;
+    private int maxQueue = 0;
+
+    /**
+     * @param  bytesPerSecond link rate
+     * @param  burst bytes the bucket holds, at least a packet
+     * @param  capacity packets the queue holds
+     * @param  red true for RED, false for drop tail only
+     */
+    public Bottleneck(long bytesPerSecond, long burst, int capacity, boolean red, long seed) {
+        this.bytesPerNano = bytesPerSecond / 1e9;
+        this.burst = burst;
+        this.capacity = capacity;
+        this.red = red;
+        this.random = new Random(seed);
+        this.tokens = burst;
+        this.tokensAt = System.nanoTime();
+    }
+
+    /**
+     * Puts a packet into the queue
+     * @param  length size of the packet in bytes
+     * @param  now arrival time in nanoseconds
+     * @return the departure time, or -1 if the packet is dropped
+     */
+    public synchronized long admit(int length, long now) {
+        while (!departures.isEmpty() && departures.peekFirst() <= now) {
+            departures.pollFirst();
+        }
+        int queued = departures.size();
+        if (queued >= capacity) {
+            queueDrops++;
+            return -1;
+        }
+        if (red && dropEarly(queued)) {
+            earlyDrops++;
+            return -1;
+        }
+        long start = Math.max(now, lastDeparture);
+        tokens = Math.min(burst, tokens + (start - tokensAt) * bytesPerNano);
+        long departure = start;
+        if (tokens < length) {
+            // wait for the missing bytes to trickle in
+            departure += (long) Math.ceil((length - tokens) / bytesPerNano);
+            tokens = length;
+        }
+        tokens -= length;
+        tokensAt = departure;
+        lastDeparture = departure;
+        departures.addLast(departure);
+        admitted++;
+        queueSum += queued;
+        maxQueue = Math.max(maxQueue, queued + 1);
+        return departure;
+    }
+
+    private boolean dropEarly(int queued) {
+        averageQueue += RED_WEIGHT * (queued - averageQueue);
+        double minThreshold = capacity / 4.0;
+        double maxThreshold = capacity * 3 / 4.0;
+        if (averageQueue < minThreshold) {
+            return false;
+        }
+        if (averageQueue >= maxThreshold) {
+            return true;
+        }
+        double probability = RED_MAX_PROBABILITY * (averageQueue - minThreshold) / (maxThreshold - minThreshold);
+        return random.nextDouble() < probability;
+    }
+
+    /**
+     * @return a line of statistics
+     */
+    public synchronized String toString() {
+        return String.format("%d queue overflow drops, %d RED drops, queue length avg %.1f max %d",
+                             queueDrops, earlyDrops, admitted == 0 ? 0.0 : (double) queueSum / admitted, maxQueue);
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Congestion window of the window mode, after TCP NewReno (RFC 5681 and
+ * RFC 6582), counted in packets instead of bytes.
+ * The window starts at INITIAL_WINDOW and grows by one packet per acked
+ * packet in slow start, doubling every round trip, until it reaches the
+ * slow start threshold. Above that it grows by about one packet per round
+ * trip (congestion avoidance). The third duplicate ACK halves it and
+ * starts fast recovery, in which every further duplicate ACK lets one more
+ * packet out, until everything that was in flight at the loss is acked.
+ * A timeout halves the threshold and restarts from one packet.
+ * With pacing the packets of a window are spread over a round trip instead
+ * of going out in bursts as ACKs come in.
+ */
+class CongestionControl {
+  static final double INITIAL_WINDOW = 4;
+  static final double MIN_THRESHOLD = 2;
+  static final int DUPLICATE_ACK_THRESHOLD = 3;
+
+  private final boolean pacing;
+  private double cwnd = INITIAL_WINDOW;
+  private double ssthresh = Double.MAX_VALUE;
+  private int duplicateAcks = 0;
+  private boolean inRecovery = false;
+  // recovery ends once everything before this sequence number is acked
+  private int recoveryPoint;
+  private long fastRetransmits = 0;
+  private long timeouts = 0;
+
+  // optional CSV of the window over time
+  private final BufferedWriter log;
+  private final long startedAt = System.nanoTime();
+
+  /**
+   * @param  pacing whether packets are spread over the round trip time
+   * @param  logFile CSV file that gets a line per change of the window, or null
+   * @throws IOException if the log file cannot be created
+   */
+  public CongestionControl(boolean pacing, Path logFile) throws IOException {
+    this.pacing = pacing;
+    if(logFile != null) {
+      log = Files.newBufferedWriter(logFile);
+      log.write("time_ms,cwnd,ssthresh,in_flight,event\n");
+    } else {
+      log = null;
+    }
+  }
+
+  /**
+   * @return packets that may be in flight now
+   */
+  public int getWindow() {
+    return (int) cwnd;
+  }
+
+  public boolean isInRecovery() {
+    return inRecovery;
+  }
+
+  /**
+   * An ACK moved the cumulative ACK forward
+   * @param  newlyAcked packets it acked
+   * @param  cumulativeAck the new cumulative ACK
+   * @param  inFlight packets still in flight
+   * @return true if recovery continues, so the new oldest packet is lost as well (a partial ACK)
+   */
+  public boolean onNewAck(int newlyAcked, int cumulativeAck, int inFlight) throws IOException {
+    duplicateAcks = 0;
+    if(inRecovery) {
+      if(cumulativeAck - recoveryPoint >= 0) {
+        inRecovery = false;
+        cwnd = ssthresh;
+        log("recovered", inFlight);
+        return false;
+      }
+      // deflate by what left the network, then let one new packet out
+      cwnd = Math.max(1, cwnd - newlyAcked + 1);
+      log("partial_ack", inFlight);
+      return true;
+    }
+    if(cwnd < ssthresh) {
+      cwnd = Math.min(cwnd + newlyAcked, Math.max(ssthresh, cwnd));
+    } else {
+      cwnd += (double) newlyAcked / cwnd;
+    }
+    log("ack", inFlight);
+    return false;
+  }
+
+  /**
+   * An ACK repeated the cumulative ACK while packets are in flight
+   * @param  nextSeq the next sequence number to be sent, where recovery ends
+   * @param  inFlight packets in flight
+   * @return true if the oldest packet is to be retransmitted now (fast retransmit)
+   */
+  public boolean onDuplicateAck(int nextSeq, int inFlight) throws IOException {
+    if(inRecovery) {
+      // a packet left the network
+      cwnd++;
+      log("duplicate_ack", inFlight);
+      return false;
+    }
+    if(++duplicateAcks < DUPLICATE_ACK_THRESHOLD) {
+      return false;
+    }
+    ssthresh = Math.max(inFlight / 2.0, MIN_THRESHOLD);
+    cwnd = ssthresh + DUPLICATE_ACK_THRESHOLD;
+    inRecovery = true;
+    recoveryPoint = nextSeq;
+    fastRetransmits++;
+    log("fast_retransmit", inFlight);
+    return true;
+  }
+
+  /**
+   * The retransmission timer of the oldest packet fired
+   */
+  public void onTimeout(int inFlight) throws IOException {
+    ssthresh = Math.max(inFlight / 2.0, MIN_THRESHOLD);
+    cwnd = 1;
+    duplicateAcks = 0;
+    inRecovery = false;
+    timeouts++;
+    log("timeout", inFlight);
+  }
+
+  /**
+   * @param  srttNanos smoothed round trip time, 0 if there is no sample yet
+   * @return time between two packets, 0 without pacing
+   */
+  public long getPacingIntervalNanos(long srttNanos) {
+    if(!pacing || srttNanos == 0) {
+      return 0;
+    }
+    return (long) (srttNanos / cwnd);
+  }
+
+  private void log(String event, int inFlight) throws IOException {
+    if(log != null) {
+      log.write(String.format("%.3f,%.2f,%.2f,%d,%s%n", (System.nanoTime() - startedAt) / 1e6,
+                              cwnd, ssthresh == Double.MAX_VALUE ? -1 : ssthresh, inFlight, event));
+    }
+  }
+
+  /**
+   * @return a line of statistics
+   */
+  @Override
+  public String toString() {
+    return String.format("cwnd %.2f, %d fast retransmits, %d timeouts", cwnd, fastRetransmits, timeouts);
+  }
+
+  public void close() throws IOException {
+    if(log != null) {
+      log.close();
+    }
+  }
+}
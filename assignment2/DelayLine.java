@@ -0,0 +1,115 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Propagation delay of one direction of UnreliNET.
+ * A packet is stamped with its due time when it arrives and put into a
+ * DelayQueue, and a thread of its own sends it once that time has come.
+ * The forwarding threads never wait, so packets overlap in flight the way
+ * they do on a long link, instead of the delay limiting the link to one
+ * packet per delay. A packet is never due before the one ahead of it, so
+ * the link stays FIFO even when the delay varies. Packet buffers come
+ * from a pool and go back to it once sent.
+ * Shared by all flows of the direction, like the link it models.
+ */
+class DelayLine extends Thread {
+    private final DelayQueue<Entry> queue = new DelayQueue<>();
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final int bufferSize;
+    // due time of the last packet scheduled
+    private long lastDue = 0;
+    // order of scheduling, which breaks ties between packets due at the same time
+    private long sequence = 0;
+
+    /**
+     * A packet waiting for its due time
+     */
+    static class Entry implements Delayed {
+        final DatagramChannel channel;
+        final ByteBuffer data;
+        final SocketAddress address;
+        final long due;
+        final long sequence;
+
+        Entry(DatagramChannel channel, ByteBuffer data, SocketAddress address, long due, long sequence) {
+            this.channel = channel;
+            this.data = data;
+            this.address = address;
+            this.due = due;
+            this.sequence = sequence;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            Entry entry = (Entry) other;
+            int order = Long.compare(due, entry.due);
+            return order != 0 ? order : Long.compare(sequence, entry.sequence);
+        }
+    }
+
+    /**
+     * @param  bufferSize size of the pooled packet buffers
+     */
+    public DelayLine(int bufferSize) {
+        this.bufferSize = bufferSize;
+        setDaemon(true);
+    }
+
+    /**
+     * @return a cleared heap buffer to receive a packet into, from the pool if there is one
+     */
+    public ByteBuffer takeBuffer() {
+        ByteBuffer buffer = pool.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Puts back a buffer from takeBuffer() that is not scheduled after all,
+     * such as that of a dropped packet
+     */
+    public void returnBuffer(ByteBuffer buffer) {
+        pool.offer(buffer);
+    }
+
+    /**
+     * Sends a packet after a delay. The buffer belongs to the delay line
+     * from now on and goes back to the pool once the packet is sent.
+     * @param  data the packet between position and limit
+     * @param  delayNanos delay from now
+     * @return the time the packet leaves, later than asked for if a packet ahead of it is due later
+     */
+    public synchronized long schedule(DatagramChannel channel, ByteBuffer data, SocketAddress address, long delayNanos) {
+        // even a packet without delay goes through the queue: sent right here it
+        // could overtake one the thread has taken from the queue but not sent yet
+        long due = Math.max(System.nanoTime() + delayNanos, lastDue);
+        lastDue = due;
+        queue.put(new Entry(channel, data, address, due, sequence++));
+        return due;
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                Entry entry = queue.take();
+                try {
+                    entry.channel.send(entry.data, entry.address);
+                } catch (ClosedChannelException e) {
+                    // the flow was evicted while the packet was on its way, it is lost
+                }
+                pool.offer(entry.data);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+}
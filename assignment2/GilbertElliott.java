@@ -0,0 +1,64 @@
+import java.util.Random;
+
+/**
+ * Bursty loss after Gilbert and Elliott: a Markov chain with a good and a
+ * bad state and a loss probability in each. Losses cluster in the bad
+ * state the way they do on a congested or fading link, where a uniform
+ * loss rate would spread them out evenly. The chain is advanced once per
+ * packet with the random generator of the caller, so a seeded generator
+ * gives the same losses in every run.
+ */
+class GilbertElliott {
+    private final double goodToBad;
+    private final double badToGood;
+    private final double lossGood;
+    private final double lossBad;
+    private boolean bad = false;
+
+    /**
+     * @param  goodToBad probability p of going from the good to the bad state
+     * @param  badToGood probability r of going from the bad to the good state
+     * @param  lossGood loss probability in the good state
+     * @param  lossBad loss probability in the bad state
+     */
+    public GilbertElliott(double goodToBad, double badToGood, double lossGood, double lossBad) {
+        this.goodToBad = goodToBad;
+        this.badToGood = badToGood;
+        this.lossGood = lossGood;
+        this.lossBad = lossBad;
+    }
+
+    /**
+     * @param  spec "p,r,lossGood,lossBad"
+     */
+    public static GilbertElliott parse(String spec) {
+        String[] fields = spec.split(",");
+        if (fields.length != 4) {
+            throw new IllegalArgumentException("Expected p,r,lossGood,lossBad but got " + spec);
+        }
+        return new GilbertElliott(Double.parseDouble(fields[0]), Double.parseDouble(fields[1]),
+                                  Double.parseDouble(fields[2]), Double.parseDouble(fields[3]));
+    }
+
+    /**
+     * @return a chain with the same parameters in the good state
+     */
+    public GilbertElliott copy() {
+        return new GilbertElliott(goodToBad, badToGood, lossGood, lossBad);
+    }
+
+    /**
+     * Advances the chain by one packet
+     * @return true if the packet is lost
+     */
+    public boolean lose(Random random) {
+        if (random.nextDouble() < (bad ? badToGood : goodToBad)) {
+            bad = !bad;
+        }
+        return random.nextDouble() < (bad ? lossBad : lossGood);
+    }
+
+    public String toString() {
+        return String.format("Gilbert-Elliott p=%s r=%s loss %s/%s", goodToBad, badToGood, lossGood, lossBad);
+    }
+}
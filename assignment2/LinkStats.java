@@ -0,0 +1,147 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one direction of UnreliNET, updated by every forwarding
+ * thread for every packet. They are LongAdders, so threads counting at
+ * the same time do not contend on one memory location, and reading them
+ * is left to whoever wants a report. Delays are counted in a histogram
+ * with four buckets per power of two microseconds, which keeps the
+ * percentiles within a quarter of an octave.
+ */
+class LinkStats {
+    static final int BUCKETS = 160;
+
+    private final String name;
+    private final LongAdder arrived = new LongAdder();
+    private final LongAdder arrivedBytes = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder forwardedBytes = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder corrupted = new LongAdder();
+    private final LongAdder queueDropped = new LongAdder();
+    private final LongAdder[] delays = new LongAdder[BUCKETS];
+
+    /**
+     * The counters at one point in time
+     */
+    static class Snapshot {
+        final long time;
+        long arrived;
+        long arrivedBytes;
+        long forwarded;
+        long forwardedBytes;
+        long dropped;
+        long corrupted;
+        long queueDropped;
+        final long[] delays = new long[BUCKETS];
+
+        /**
+         * @param  time System.nanoTime() of the snapshot, counters all 0 for the start
+         */
+        Snapshot(long time) {
+            this.time = time;
+        }
+    }
+
+    public LinkStats(String name) {
+        this.name = name;
+        for (int i = 0; i < BUCKETS; i++) {
+            delays[i] = new LongAdder();
+        }
+    }
+
+    public void arrived(int length) {
+        arrived.increment();
+        arrivedBytes.add(length);
+    }
+
+    public void dropped() {
+        dropped.increment();
+    }
+
+    public void corrupted() {
+        corrupted.increment();
+    }
+
+    public void queueDropped() {
+        queueDropped.increment();
+    }
+
+    /**
+     * @param  delayMicros time from arrival to departure
+     */
+    public void forwarded(int length, long delayMicros) {
+        forwarded.increment();
+        forwardedBytes.add(length);
+        delays[bucket(delayMicros)].increment();
+    }
+
+    static int bucket(long micros) {
+        if (micros < 4) {
+            return (int) Math.max(micros, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - 2)) & 3;
+        return Math.min(4 * (exponent - 1) + sub, BUCKETS - 1);
+    }
+
+    // the smallest delay that falls into the bucket
+    static long lowerBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        return (4L + bucket % 4) << (bucket / 4 - 1);
+    }
+
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot(System.nanoTime());
+        snapshot.arrived = arrived.sum();
+        snapshot.arrivedBytes = arrivedBytes.sum();
+        snapshot.forwarded = forwarded.sum();
+        snapshot.forwardedBytes = forwardedBytes.sum();
+        snapshot.dropped = dropped.sum();
+        snapshot.corrupted = corrupted.sum();
+        snapshot.queueDropped = queueDropped.sum();
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot.delays[i] = delays[i].sum();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param  now the counters at the end of the interval
+     * @param  before the counters at its start
+     * @return a line with the rates, counts and delay distribution of the interval
+     */
+    public String report(Snapshot now, Snapshot before) {
+        double seconds = Math.max(now.time - before.time, 1) / 1e9;
+        long[] delays = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            delays[i] = now.delays[i] - before.delays[i];
+            count += delays[i];
+        }
+        return String.format("%s: %d in %.0f pkt/s %.3f MB/s, out %.0f pkt/s %.3f MB/s, %d dropped, %d corrupted, %d queue drops, "
+                             + "delay ms p50 %s p90 %s p99 %s max %s",
+                             name, now.arrived - before.arrived,
+                             (now.arrived - before.arrived) / seconds, (now.arrivedBytes - before.arrivedBytes) / seconds / 1e6,
+                             (now.forwarded - before.forwarded) / seconds, (now.forwardedBytes - before.forwardedBytes) / seconds / 1e6,
+                             now.dropped - before.dropped, now.corrupted - before.corrupted, now.queueDropped - before.queueDropped,
+                             percentile(delays, count, 0.5), percentile(delays, count, 0.9),
+                             percentile(delays, count, 0.99), percentile(delays, count, 1));
+    }
+
+    // the lower bound of the bucket the percentile falls into, in ms
+    private static String percentile(long[] delays, long count, double fraction) {
+        if (count == 0) {
+            return "-";
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * fraction));
+        long seen = 0;
+        int bucket = 0;
+        while ((seen += delays[bucket]) < rank) {
+            bucket++;
+        }
+        return String.format("%.1f", lowerBound(bucket) / 1000.0);
+    }
+}
@@ -0,0 +1,181 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Encodes and decodes the packets of one endpoint without allocating.
+ * Every packet starts with a 12 byte header:
+ *   [checksum (4)] [algorithm (2)] [length (2)] [sequence number (4)]
+ * The checksum covers the rest of the packet and is computed with the
+ * algorithm the packet names, CRC32 or CRC32C. Both are intrinsified by
+ * the JVM, CRC32C with the dedicated instruction of newer CPUs. The
+ * length is the number of bytes after the header:
+ *   data               [header] [payload]
+ *   stop-and-wait ACK  [header with the sequence number]
+ *   window ACK         [header with the cumulative ACK] [SACK bits (4)]
+ * Packets are exactly as long as their content and the checksum is
+ * computed in place. A packet whose length field disagrees with its size
+ * or whose algorithm is unknown is rejected before any checksumming.
+ * The codec owns one buffer for received packets and one for packets that
+ * are sent once and not kept. Both are direct for a DatagramChannel, which
+ * would otherwise copy heap buffers into a temporary direct buffer, and
+ * heap buffers for a DatagramSocket, which needs their arrays.
+ */
+class PacketCodec {
+  static final int CHECKSUM_SIZE = 4;
+  static final int ALGORITHM_OFFSET = CHECKSUM_SIZE;
+  static final int LENGTH_OFFSET = ALGORITHM_OFFSET + 2;
+  static final int SEQUENCE_OFFSET = LENGTH_OFFSET + 2;
+  static final int HEADER_SIZE = SEQUENCE_OFFSET + 4;
+  static final int SACK_BITS = 32;
+  static final int ACK_SIZE = HEADER_SIZE + SACK_BITS / 8;
+  // the largest Selective Repeat window whose packets after the cumulative ACK all have a SACK bit
+  static final int MAX_SELECTIVE_WINDOW = SACK_BITS + 1;
+  static final int MAX_PACKET_SIZE = 1024;
+  static final int MAX_PAYLOAD_SIZE = MAX_PACKET_SIZE - HEADER_SIZE;
+  static final int ALGORITHM_CRC32 = 0;
+  static final int ALGORITHM_CRC32C = 1;
+
+  // indexed by algorithm
+  private final Checksum[] checksums = {new CRC32(), new CRC32C()};
+  private int algorithm = ALGORITHM_CRC32;
+  private final ByteBuffer in;
+  private final ByteBuffer out;
+
+  /**
+   * @param  direct true for direct buffers, false for heap buffers with arrays
+   */
+  public PacketCodec(boolean direct) {
+    in = direct ? ByteBuffer.allocateDirect(MAX_PACKET_SIZE) : ByteBuffer.allocate(MAX_PACKET_SIZE);
+    out = direct ? ByteBuffer.allocateDirect(MAX_PACKET_SIZE) : ByteBuffer.allocate(MAX_PACKET_SIZE);
+  }
+
+  /**
+   * @param  name "crc32" or "crc32c"
+   * @return the algorithm, or -1 if there is none of that name
+   */
+  public static int parseAlgorithm(String name) {
+    switch(name) {
+      case "crc32":
+        return ALGORITHM_CRC32;
+      case "crc32c":
+        return ALGORITHM_CRC32C;
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * Sets the checksum algorithm of the packets encoded from now on
+   */
+  public void setAlgorithm(int algorithm) {
+    this.algorithm = algorithm;
+  }
+
+  /**
+   * @return the cleared buffer to receive the next packet into
+   */
+  public ByteBuffer receiveBuffer() {
+    return in.clear();
+  }
+
+  /**
+   * Checks the packet in the receive buffer
+   * @param  length length of the packet
+   * @return the receive buffer positioned after the header and limited to
+   *         the packet, or null if the packet is malformed or corrupted
+   */
+  public ByteBuffer decode(int length) {
+    if(length < HEADER_SIZE || length > in.capacity()) {
+      return null;
+    }
+    int packetAlgorithm = in.getShort(ALGORITHM_OFFSET);
+    if(packetAlgorithm < 0 || packetAlgorithm >= checksums.length
+       || (in.getShort(LENGTH_OFFSET) & 0xffff) != length - HEADER_SIZE) {
+      return null;
+    }
+    in.limit(length);
+    if(checksum(in, packetAlgorithm) != in.getInt(0)) {
+      return null;
+    }
+    return in.position(HEADER_SIZE);
+  }
+
+  /**
+   * @return the algorithm of the last packet decoded, for answering in kind
+   */
+  public int getReceivedAlgorithm() {
+    return in.getShort(ALGORITHM_OFFSET);
+  }
+
+  /**
+   * Encodes a data packet into the send buffer, see encode(ByteBuffer, int, ByteBuffer)
+   */
+  public ByteBuffer encode(int seq, ByteBuffer payload) {
+    return encode(out, seq, payload);
+  }
+
+  /**
+   * Encodes a data packet, for example into a buffer kept for retransmissions
+   * @param  packet buffer of at least MAX_PACKET_SIZE bytes
+   * @param  payload its remaining bytes are consumed, at most MAX_PAYLOAD_SIZE
+   * @return packet, ready to be sent
+   */
+  public ByteBuffer encode(ByteBuffer packet, int seq, ByteBuffer payload) {
+    if(payload.remaining() > MAX_PAYLOAD_SIZE) {
+      throw new IllegalArgumentException("Payload of " + payload.remaining() + " bytes does not fit into a packet");
+    }
+    packet.clear();
+    packet.position(SEQUENCE_OFFSET);
+    packet.putInt(seq);
+    packet.put(payload);
+    return seal(packet);
+  }
+
+  /**
+   * @return the send buffer holding a stop-and-wait ACK
+   */
+  public ByteBuffer encodeAck(int seq) {
+    out.clear();
+    out.position(SEQUENCE_OFFSET);
+    out.putInt(seq);
+    return seal(out);
+  }
+
+  /**
+   * @param  cumulativeAck the next sequence number expected
+   * @param  selectiveAcks bit i set if cumulativeAck + 1 + i was received
+   * @return the send buffer holding a window ACK
+   */
+  public ByteBuffer encodeAck(int cumulativeAck, int selectiveAcks) {
+    out.clear();
+    out.position(SEQUENCE_OFFSET);
+    out.putInt(cumulativeAck);
+    out.putInt(selectiveAcks);
+    return seal(out);
+  }
+
+  /**
+   * Fills in algorithm, length and checksum once the rest is written
+   */
+  private ByteBuffer seal(ByteBuffer packet) {
+    packet.flip();
+    packet.putShort(ALGORITHM_OFFSET, (short) algorithm);
+    packet.putShort(LENGTH_OFFSET, (short) (packet.limit() - HEADER_SIZE));
+    packet.putInt(0, checksum(packet, algorithm));
+    return packet;
+  }
+
+  /**
+   * @return checksum of the packet after the checksum field up to its limit
+   */
+  private int checksum(ByteBuffer packet, int algorithm) {
+    Checksum checksum = checksums[algorithm];
+    checksum.reset();
+    packet.position(CHECKSUM_SIZE);
+    checksum.update(packet);
+    packet.position(0);
+    return (int) checksum.getValue();
+  }
+}
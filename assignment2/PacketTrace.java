@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary trace of the packets UnreliNET forwards, one fixed size record per
+ * packet that arrives, in the order of arrival:
+ *
+ *   time_ns 8    arrival since the start of UnreliNET
+ *   flow 4       number of the flow, in the order the flows started
+ *   delay_us 4   propagation delay drawn for the packet
+ *   queue_us 4   time spent in the bottleneck queue
+ *   length 2     size of the packet
+ *   direction 1  DATA or ACK
+ *   flags 1      DROPPED, CORRUPTED and QUEUE_DROPPED
+ *
+ * after a 4 byte MAGIC, all big endian. Records are collected in a direct
+ * buffer and written to the file channel when it is full, so recording
+ * costs no system call per packet. A trace written by other means in the
+ * same format, with only the flags and the delay filled in, is a synthetic
+ * trace and replays the same (see TraceReplay).
+ * Shared by all flows of both directions, so its methods are synchronized.
+ */
+class PacketTrace {
+    static final int MAGIC = 0x554e5431; // "UNT1"
+    static final int RECORD_SIZE = 24;
+    static final int BUFFER_RECORDS = 4096;
+
+    static final byte DATA = 0;
+    static final byte ACK = 1;
+
+    static final int DROPPED = 1;
+    static final int CORRUPTED = 2;
+    static final int QUEUE_DROPPED = 4;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(4 + RECORD_SIZE * BUFFER_RECORDS);
+    private final long startedAt;
+    private long records = 0;
+    private boolean closed = false;
+
+    /**
+     * @param  file the trace file, replaced if it exists
+     * @param  startedAt time 0 of the trace in System.nanoTime()
+     */
+    public PacketTrace(String file, long startedAt) throws IOException {
+        this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.startedAt = startedAt;
+        buffer.putInt(MAGIC);
+    }
+
+    /**
+     * Adds the record of a packet
+     * @param  arrival arrival time in System.nanoTime()
+     */
+    public synchronized void record(long arrival, int flow, byte direction, int length, int flags,
+                                    int delayMicros, int queueMicros) throws IOException {
+        if (closed) {
+            // packets still arriving during shutdown
+            return;
+        }
+        if (buffer.remaining() < RECORD_SIZE) {
+            flush();
+        }
+        buffer.putLong(arrival - startedAt)
+              .putInt(flow)
+              .putInt(delayMicros)
+              .putInt(queueMicros)
+              .putShort((short) length)
+              .put(direction)
+              .put((byte) flags);
+        records++;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writes the records still in the buffer and closes the file
+     * @return the number of records in the trace
+     */
+    public synchronized long close() throws IOException {
+        if (!closed) {
+            closed = true;
+            flush();
+            channel.close();
+        }
+        return records;
+    }
+}
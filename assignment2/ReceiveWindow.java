@@ -0,0 +1,83 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Receiver side of the window mode: a reorder buffer that takes packets in
+ * any order within the window and hands their payloads out in order.
+ * A window of size 1 only takes the next expected packet (Go-Back-N),
+ * a larger one buffers the packets behind a gap (Selective Repeat).
+ * Every slot is a preallocated direct buffer that payloads are copied
+ * into, so receiving does not allocate.
+ */
+class ReceiveWindow {
+  private final int size;
+  // payloads received ahead of time, indexed by sequence number modulo size
+  private final ByteBuffer[] buffered;
+  private final boolean[] present;
+  private int nextExpected = 0;
+
+  public ReceiveWindow(int size) {
+    this.size = size;
+    this.buffered = new ByteBuffer[size];
+    this.present = new boolean[size];
+    ByteBuffer slots = ByteBuffer.allocateDirect(size * PacketCodec.MAX_PAYLOAD_SIZE);
+    for(int i = 0; i < size; i++) {
+      slots.limit((i + 1) * PacketCodec.MAX_PAYLOAD_SIZE).position(i * PacketCodec.MAX_PAYLOAD_SIZE);
+      buffered[i] = slots.slice();
+    }
+  }
+
+  /**
+   * Takes a packet into the window
+   * @param  seq sequence number of the packet
+   * @param  payload its payload, the remaining bytes are copied
+   * @return false if the packet is a duplicate or outside the window
+   */
+  public boolean accept(int seq, ByteBuffer payload) {
+    int offset = seq - nextExpected;
+    if(offset < 0 || offset >= size) {
+      return false;
+    }
+    int slot = Math.floorMod(seq, size);
+    if(present[slot]) {
+      return false;
+    }
+    buffered[slot].clear();
+    buffered[slot].put(payload).flip();
+    present[slot] = true;
+    return true;
+  }
+
+  /**
+   * @return the next payload in order, or null if it has not arrived yet.
+   *         The buffer is only valid until the next call to accept.
+   */
+  public ByteBuffer poll() {
+    int slot = Math.floorMod(nextExpected, size);
+    if(!present[slot]) {
+      return null;
+    }
+    present[slot] = false;
+    nextExpected++;
+    return buffered[slot];
+  }
+
+  /**
+   * @return the next sequence number expected, everything before it was received
+   */
+  public int getCumulativeAck() {
+    return nextExpected;
+  }
+
+  /**
+   * @return bit i set if packet getCumulativeAck() + 1 + i is buffered
+   */
+  public int getSelectiveAcks() {
+    int bits = 0;
+    for(int i = 0; i < PacketCodec.SACK_BITS && i + 1 < size; i++) {
+      if(present[Math.floorMod(nextExpected + 1 + i, size)]) {
+        bits |= 1 << i;
+      }
+    }
+    return bits;
+  }
+}
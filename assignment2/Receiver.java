@@ -1,20 +1,52 @@
 import java.io.IOException;
 import java.net.*;
 import java.nio.*;
-import java.util.zip.CRC32;
 
 
 
 class Receiver {
     
   private int currentState = 1;  
+  // reused for every packet of the stop-and-wait mode
+  private final PacketCodec codec = new PacketCodec(false);
+  private final DatagramPacket rcvedPkt = new DatagramPacket(codec.receiveBuffer().array(), PacketCodec.MAX_PACKET_SIZE);
+  private final DatagramPacket ackPkt = new DatagramPacket(new byte[0], 0);
   public static void main(String[] args) throws Exception {
     // check if the number of command line argument is 4
-    if (args.length != 1) {
-      System.out.println("Usage: java Receiver <port>");
-      System.exit(1);
+    if (args.length < 1 || args.length % 2 != 1) {
+      usage();
+    }
+    // 0 for stop-and-wait
+    int windowSize = 0;
+    String file = null;
+    int threads = 1;
+    for (int i = 1; i < args.length; i += 2) {
+      if (args[i].equals("-window")) {
+        windowSize = Integer.parseInt(args[i + 1]);
+      } else if (args[i].equals("-file")) {
+        file = args[i + 1];
+      } else if (args[i].equals("-threads")) {
+        threads = Integer.parseInt(args[i + 1]);
+      } else {
+        usage();
+      }
+    }
+    if (windowSize > PacketCodec.MAX_SELECTIVE_WINDOW) {
+      System.out.println("Receive windows are limited to " + PacketCodec.MAX_SELECTIVE_WINDOW + " packets");
+      usage();
+    }
+    if (file != null) {
+      new Receiver(Integer.parseInt(args[0]), windowSize > 0 ? windowSize : Sender.DEFAULT_FILE_WINDOW, file, threads);
+    } else if (windowSize > 0) {
+      new Receiver(Integer.parseInt(args[0]), windowSize, null, threads);
+    } else {
+      new Receiver(Integer.parseInt(args[0]));
     }
-    new Receiver(Integer.parseInt(args[0]));
+  }
+
+  private static void usage() {
+    System.out.println("Usage: java Receiver <port> [-window <packets>] [-file <path>] [-threads <n>]");
+    System.exit(1);
   }
   
   public Receiver(int port) throws Exception {
@@ -28,27 +60,41 @@ class Receiver {
     }
   }
   
+  /**
+   * Receives in window mode, see PacketCodec for the packet formats.
+   * Packets that arrive out of order are buffered as long as they fall
+   * into the window and every line is printed once, in order.
+   * @param  windowSize 1 for Go-Back-N, more for Selective Repeat
+   */
+  public Receiver(int port, int windowSize) throws Exception {
+    this(port, windowSize, null, 1);
+  }
+
+  /**
+   * Receives in window mode from any number of senders, see WindowReceiver.
+   * With a file the payloads are written to it instead of being printed.
+   * A transfer ends with an empty packet, after which ACKs are still sent
+   * for a while in case the last ones got lost.
+   * @param  file the file to write, "%p" in it is replaced by the sender.
+   *         null to print lines
+   * @param  threads receive threads, sharing the port with SO_REUSEPORT
+   */
+  public Receiver(int port, int windowSize, String file, int threads) throws Exception {
+    new WindowReceiver(windowSize, file).run(port, threads);
+  }
+  
   public String receiveMessage(DatagramSocket socket) throws Exception {
-      byte[] inBuffer = new byte[1024];
-      DatagramPacket rcvedPkt = new DatagramPacket(inBuffer, inBuffer.length);
+      rcvedPkt.setLength(PacketCodec.MAX_PACKET_SIZE);
+      codec.receiveBuffer();
       socket.receive(rcvedPkt);
-      ByteBuffer bb = ByteBuffer.wrap(rcvedPkt.getData());
-      long receivedCheckSum = bb.getLong(0);
-      int sequenceNumber = bb.getInt(8);
-      byte[] messageData = new byte[bb.remaining() - 12];
-      for (int i = 0; i < bb.remaining() - 12; i++) {
-          messageData[i] = bb.get(i+12); 
-      }
-      String x = new String(messageData);
-      ByteBuffer new_bb = ByteBuffer.allocate(1024);
-      new_bb.putInt(sequenceNumber);
-      new_bb.put(messageData);
+      ByteBuffer packet = codec.decode(rcvedPkt.getLength());
       String data = null;
-      long computedCheckSum = computeChecksum(new_bb.array());
-      if(computedCheckSum == receivedCheckSum) {
+      if(packet != null) {
+          codec.setAlgorithm(codec.getReceivedAlgorithm());
+          int sequenceNumber = packet.getInt(PacketCodec.SEQUENCE_OFFSET);
           if((sequenceNumber == 0 && currentState == 1) || (sequenceNumber == 1 && currentState == 0) ) {
               currentState = sequenceNumber;
-              data = new String(messageData);
+              data = new String(packet.array(), PacketCodec.HEADER_SIZE, packet.remaining());
           }
           
       }
@@ -57,21 +103,11 @@ class Receiver {
       
   }
   
-  public long computeChecksum(byte[] data) {
-      CRC32 crc = new CRC32();
-      crc.update(data);
-      return crc.getValue();
-
-  }
-  
   public void sendAck(DatagramSocket socket, InetAddress host, int port) throws IOException {
-      ByteBuffer bb = ByteBuffer.allocate(1024);
-      ByteBuffer sequenceNumber = ByteBuffer.allocate(4);
-      sequenceNumber.putInt(currentState);
-      bb.putLong(computeChecksum(sequenceNumber.array()));
-      bb.putInt(currentState);
-      byte[] sendData = bb.array();
-      DatagramPacket ackPkt = new DatagramPacket(sendData, sendData.length, host, port);
+      ByteBuffer ack = codec.encodeAck(currentState);
+      ackPkt.setData(ack.array(), 0, ack.limit());
+      ackPkt.setAddress(host);
+      ackPkt.setPort(port);
       socket.send(ackPkt);
   }
   
@@ -0,0 +1,75 @@
+/**
+ * Retransmission timeout from measured round-trip times, as in RFC 6298.
+ * SRTT and RTTVAR are exponentially weighted averages of the samples and
+ * their deviation, and the timeout is SRTT + 4 * RTTVAR. Every timeout
+ * doubles it until the next sample, or until an ACK shows that data gets
+ * through again. Without the latter a lossy link, where nearly every
+ * window holds a retransmission, would rarely give a sample and the
+ * timeout would only grow. Callers follow Karn's rule and only sample
+ * packets that were sent once, since an ACK for a retransmitted packet
+ * cannot be matched to the transmission it answers.
+ * The lower bound is much smaller than the 1 second of the RFC so that a
+ * loopback link with a near-zero round-trip time recovers quickly. It is
+ * also never below twice SRTT: on a link with a constant delay RTTVAR
+ * drops to nearly 0, and any queueing would otherwise end in a spurious
+ * timeout.
+ */
+class RttEstimator {
+  static final long INITIAL_RTO_NANOS = 1000 * 1000000L;
+  static final long MIN_RTO_NANOS = 10 * 1000000L;
+  static final long MAX_RTO_NANOS = 60 * 1000 * 1000000L;
+  // clock granularity, the least the variance term adds
+  static final long GRANULARITY_NANOS = 1000000L;
+
+  private long srtt = 0;
+  private long rttvar = 0;
+  private long rto = INITIAL_RTO_NANOS;
+  // number of doublings since the last sample or progress
+  private int backoff = 0;
+  private boolean hasSample = false;
+
+  /**
+   * @param  rttNanos time from sending a packet that was not retransmitted to its ACK
+   */
+  public void sample(long rttNanos) {
+    if(!hasSample) {
+      srtt = rttNanos;
+      rttvar = rttNanos / 2;
+      hasSample = true;
+    } else {
+      // beta = 1/4, alpha = 1/8
+      rttvar = rttvar - rttvar / 4 + Math.abs(srtt - rttNanos) / 4;
+      srtt = srtt - srtt / 8 + rttNanos / 8;
+    }
+    long rfcRto = srtt + Math.max(GRANULARITY_NANOS, 4 * rttvar);
+    rto = Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, Math.max(rfcRto, 2 * srtt)));
+    backoff = 0;
+  }
+
+  /**
+   * Doubles the timeout after it expired
+   */
+  public void backOff() {
+    if(getRto() < MAX_RTO_NANOS) {
+      backoff++;
+    }
+  }
+
+  /**
+   * Drops the doublings once new data has been acked
+   */
+  public void resetBackoff() {
+    backoff = 0;
+  }
+
+  public long getRto() {
+    return Math.min(MAX_RTO_NANOS, rto << backoff);
+  }
+
+  /**
+   * @return the smoothed round-trip time, 0 before the first sample
+   */
+  public long getSrtt() {
+    return srtt;
+  }
+}
@@ -1,21 +1,92 @@
+import java.io.IOException;
 import java.net.*;
 import java.nio.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
 import java.util.Scanner;
-import java.util.zip.CRC32;
 
 
 class Sender {
   private int currentState = 0;  
+  private final RttEstimator rtt = new RttEstimator();
+  // reused for every packet of the stop-and-wait mode
+  private final PacketCodec codec = new PacketCodec(false);
+  private final DatagramPacket rcvedPkt = new DatagramPacket(codec.receiveBuffer().array(), PacketCodec.MAX_PACKET_SIZE);
+  private DatagramSocket senderSocket;
+  private DatagramPacket sendPkt;
+  // window of a file transfer if none is given
+  static final int DEFAULT_FILE_WINDOW = 32;
   public static void main(String[] args) throws Exception {
     // check if the number of command line argument is 4
-    if (args.length != 1) {
-      System.out.println("Usage: java Sender <unreliNetPort>");
-      System.exit(1);
+    if (args.length < 1 || args.length % 2 != 1) {
+      usage();
     }
-    new Sender("localhost",  Integer.parseInt(args[0]));
+    // 0 for stop-and-wait
+    int windowSize = 0;
+    boolean selectiveRepeat = false;
+    String file = null;
+    int algorithm = PacketCodec.ALGORITHM_CRC32;
+    boolean congestionControl = false;
+    boolean pacing = false;
+    String cwndLog = null;
+    for (int i = 1; i < args.length; i += 2) {
+      if (args[i].equals("-window")) {
+        windowSize = Integer.parseInt(args[i + 1]);
+      } else if (args[i].equals("-mode") && (args[i + 1].equals("gbn") || args[i + 1].equals("sr"))) {
+        selectiveRepeat = args[i + 1].equals("sr");
+      } else if (args[i].equals("-file")) {
+        file = args[i + 1];
+      } else if (args[i].equals("-checksum") && PacketCodec.parseAlgorithm(args[i + 1]) >= 0) {
+        algorithm = PacketCodec.parseAlgorithm(args[i + 1]);
+      } else if (args[i].equals("-cc") && (args[i + 1].equals("reno") || args[i + 1].equals("none"))) {
+        congestionControl = args[i + 1].equals("reno");
+      } else if (args[i].equals("-pacing")) {
+        pacing = Boolean.parseBoolean(args[i + 1]);
+      } else if (args[i].equals("-cwndLog")) {
+        cwndLog = args[i + 1];
+      } else {
+        usage();
+      }
+    }
+    if (file != null && windowSize == 0) {
+      windowSize = DEFAULT_FILE_WINDOW;
+    }
+    if (selectiveRepeat && windowSize > PacketCodec.MAX_SELECTIVE_WINDOW) {
+      System.out.println("Selective Repeat windows are limited to " + PacketCodec.MAX_SELECTIVE_WINDOW + " packets");
+      usage();
+    }
+    if (windowSize > 0) {
+      WindowSender sender = new WindowSender("localhost", Integer.parseInt(args[0]), windowSize, selectiveRepeat, algorithm);
+      if (congestionControl) {
+        sender.setCongestionControl(new CongestionControl(pacing, cwndLog == null ? null : Paths.get(cwndLog)));
+      }
+      if (file != null) {
+        new Sender(sender, file);
+      } else {
+        new Sender(sender);
+      }
+    } else {
+      new Sender("localhost",  Integer.parseInt(args[0]), algorithm);
+    }
+  }
+
+  private static void usage() {
+    System.out.println("Usage: java Sender <unreliNetPort> [-window <packets>] [-mode gbn|sr] [-file <path>|-] [-checksum crc32|crc32c]"
+                       + " [-cc reno|none] [-pacing true|false] [-cwndLog <csv>]");
+    System.exit(1);
   }
   
   public Sender(String host, int port) throws Exception {
+    this(host, port, PacketCodec.ALGORITHM_CRC32);
+  }
+  
+  /**
+   * @param  algorithm checksum algorithm of the packets, see PacketCodec
+   */
+  public Sender(String host, int port, int algorithm) throws Exception {
+    codec.setAlgorithm(algorithm);
     // Do not change this
     Scanner sc = new Scanner(System.in);
     while(sc.hasNextLine()) {
@@ -27,58 +98,87 @@ class Sender {
     }
   }
   
+  /**
+   * Sends the lines of stdin in window mode
+   */
+  public Sender(WindowSender sender) throws Exception {
+    Scanner sc = new Scanner(System.in);
+    while(sc.hasNextLine()) {
+      sender.send(sc.nextLine().getBytes());
+    }
+    sender.close();
+  }
+  
+  /**
+   * Sends a file, or stdin if file is "-", as a byte stream in window mode.
+   * The stream is cut into packets of MAX_PAYLOAD_SIZE bytes and ends with
+   * an empty packet, which a Receiver started with -file takes as the end.
+   */
+  public Sender(WindowSender sender, String file) throws Exception {
+    ReadableByteChannel in = file.equals("-") ? Channels.newChannel(System.in) : FileChannel.open(Paths.get(file));
+    ByteBuffer segment = ByteBuffer.allocateDirect(PacketCodec.MAX_PAYLOAD_SIZE);
+    boolean end = false;
+    while (!end) {
+      // fill the whole segment, a pipe may return less than is available
+      segment.clear();
+      while (segment.hasRemaining()) {
+        if (in.read(segment) < 0) {
+          end = true;
+          break;
+        }
+      }
+      if (segment.flip().hasRemaining()) {
+        sender.send(segment);
+      }
+    }
+    sender.send(segment.clear().limit(0));
+    in.close();
+    sender.close();
+  }
+  
   public void sendMessage(String message, String host, int port) throws Exception {
     // You can assume that a single message is shorter than 750 bytes and thus
     // fits into a single packet.
     // Implement me
-      DatagramSocket senderSocket = new DatagramSocket();
-      ByteBuffer bb = ByteBuffer.allocate(1024);
-      bb.putInt(currentState);
-      bb.put(message.getBytes());
-      long checksum = computeChecksum(bb.array());
-      ByteBuffer new_bb = ByteBuffer.allocate(1024);
-      new_bb.putLong(checksum);
-      new_bb.putInt(currentState);
-      new_bb.put(message.getBytes());
-      byte[] sendData = new_bb.array();
-      DatagramPacket sendPkt = new DatagramPacket(sendData, sendData.length, InetAddress.getByName(host), port);
-      senderSocket.send(sendPkt);
-      receiveACK(senderSocket, message, host, port);
-     
-  }
-  
-  public long computeChecksum(byte[] data) {
-      CRC32 crc = new CRC32();
-      crc.update(data);
-      return crc.getValue();
-
+      if (senderSocket == null) {
+          senderSocket = new DatagramSocket();
+          sendPkt = new DatagramPacket(new byte[0], 0, InetAddress.getByName(host), port);
+      }
+      ByteBuffer packet = codec.encode(currentState, ByteBuffer.wrap(message.getBytes()));
+      sendPkt.setData(packet.array(), 0, packet.limit());
+      for (int attempt = 0; attempt <= WindowSender.MAX_RETRANSMISSIONS; attempt++) {
+          long sentAt = System.nanoTime();
+          senderSocket.send(sendPkt);
+          if (receiveACK(senderSocket)) {
+              // Karn's rule: an ACK after a retransmission could belong to either copy
+              if (attempt == 0) {
+                  rtt.sample(System.nanoTime() - sentAt);
+              } else {
+                  rtt.resetBackoff();
+              }
+              currentState = currentState == 0? 1 : 0;
+              return;
+          }
+      }
+      throw new IOException("No ACK after " + WindowSender.MAX_RETRANSMISSIONS + " retransmissions");
   }
   
-  public void receiveACK(DatagramSocket socket, String message, String host, int port) throws Exception {
+  /**
+   * Waits for the ACK of the current packet for one retransmission timeout
+   * @return true if it arrived, false if the packet has to be sent again
+   */
+  public boolean receiveACK(DatagramSocket socket) throws Exception {
       try {
-          socket.setSoTimeout(500);
-          byte[] inBuffer = new byte[1024];
-          DatagramPacket rcvedPkt = new DatagramPacket(inBuffer, inBuffer.length);
+          socket.setSoTimeout((int) Math.max(1, rtt.getRto() / 1000000));
+          rcvedPkt.setLength(PacketCodec.MAX_PACKET_SIZE);
+          codec.receiveBuffer();
           socket.receive(rcvedPkt);
-          ByteBuffer bb = ByteBuffer.wrap(rcvedPkt.getData());
-          long receivedCheckSum = bb.getLong();
-          int sequenceNumber = bb.getInt();
-          ByteBuffer sequenceNumberBuffer = ByteBuffer.allocate(4);
-          sequenceNumberBuffer.putInt(sequenceNumber);
-          long computedCheckSum = computeChecksum(sequenceNumberBuffer.array());
-          if(computedCheckSum == receivedCheckSum) {
-              if(sequenceNumber == currentState) {
-                  currentState = currentState == 0? 1 : 0;
-              } else {
-                  sendMessage(message, host, port);
-              }
-              
-          } else {
-              sendMessage(message, host, port);
-          }
-      } catch(Exception e) {
-          sendMessage(message, host, port);
+          ByteBuffer ack = codec.decode(rcvedPkt.getLength());
+          // a corrupted or duplicate ACK makes the packet go out again right away
+          return ack != null && ack.getInt(PacketCodec.SEQUENCE_OFFSET) == currentState;
+      } catch(SocketTimeoutException e) {
+          rtt.backOff();
+          return false;
       }
-      
   }
 }
\ No newline at end of file
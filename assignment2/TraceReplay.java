@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loss, corruption and delay decisions read from a PacketTrace, to be made
+ * again in the same order. Every direction of every flow gets the decisions
+ * recorded for the same direction of the flow with the same number, one per
+ * packet, whatever the timing of the run. Flows are numbered in the order
+ * they start, so the senders have to start in the same order as in the
+ * recorded run. Queue drops are not replayed, the bottleneck decides them
+ * anew.
+ */
+class TraceReplay {
+    private final Map<Long, Decisions> streams = new HashMap<>();
+    private long records = 0;
+
+    /**
+     * The recorded decisions of one direction of one flow, in order
+     */
+    static class Decisions {
+        private byte[] flags = new byte[64];
+        private int[] delays = new int[64];
+        private int count = 0;
+        private int next = -1;
+
+        private void add(int flag, int delayMicros) {
+            if (count == flags.length) {
+                flags = Arrays.copyOf(flags, count * 2);
+                delays = Arrays.copyOf(delays, count * 2);
+            }
+            flags[count] = (byte) flag;
+            delays[count] = delayMicros;
+            count++;
+        }
+
+        /**
+         * Moves on to the decision for the next packet
+         * @return false once the trace is used up
+         */
+        public boolean advance() {
+            if (next + 1 >= count) {
+                return false;
+            }
+            next++;
+            return true;
+        }
+
+        public boolean isDropped() {
+            return (flags[next] & PacketTrace.DROPPED) != 0;
+        }
+
+        public boolean isCorrupted() {
+            return (flags[next] & PacketTrace.CORRUPTED) != 0;
+        }
+
+        public int getDelayMicros() {
+            return delays[next];
+        }
+    }
+
+    /**
+     * Reads the whole trace
+     * @throws IOException if the file cannot be read or is not a trace
+     */
+    public TraceReplay(String file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file))) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(4 + PacketTrace.RECORD_SIZE * PacketTrace.BUFFER_RECORDS);
+            boolean first = true;
+            while (channel.read(buffer) >= 0 || buffer.position() > 0) {
+                buffer.flip();
+                if (first) {
+                    if (buffer.remaining() < 4 || buffer.getInt() != PacketTrace.MAGIC) {
+                        throw new IOException(file + " is not a packet trace");
+                    }
+                    first = false;
+                }
+                while (buffer.remaining() >= PacketTrace.RECORD_SIZE) {
+                    buffer.getLong(); // time
+                    int flow = buffer.getInt();
+                    int delay = buffer.getInt();
+                    buffer.getInt(); // queueing
+                    buffer.getShort(); // length
+                    byte direction = buffer.get();
+                    int flags = buffer.get();
+                    streams.computeIfAbsent(key(flow, direction), k -> new Decisions()).add(flags, delay);
+                    records++;
+                }
+                if (buffer.hasRemaining() && channel.position() == channel.size()) {
+                    throw new IOException(file + " ends in the middle of a record");
+                }
+                buffer.compact();
+            }
+        }
+    }
+
+    private static long key(int flow, byte direction) {
+        return ((long) flow << 8) | direction;
+    }
+
+    /**
+     * @return the decisions for one direction of a flow, none if the trace has no such flow
+     */
+    public Decisions get(int flow, byte direction) {
+        return streams.getOrDefault(key(flow, direction), new Decisions());
+    }
+
+    public String toString() {
+        return records + " packets in " + streams.size() + " flow direction(s)";
+    }
+}
@@ -2,158 +2,568 @@
 // (C) 2014 Hong Hande
 
 
+import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UnreliNET {
     static int max_packet_size = 1024;
-    int total_forwarded = 0;
-    int returnPort;
-    
-    // define thread which is used to handle one-direction of communication
-    public class Forwarder extends Thread {
-        private DatagramSocket source;
-        private DatagramSocket dst_socket;
-        private InetAddress dst_addr;
-        private int dst_port;
-        private int min_propagation_delay = 0;
-        private int max_propagation_delay;
+    // a flow that has not sent or received a packet this long is dropped
+    static final long IDLE_TIMEOUT_MILLIS = 30000;
+    // every ACK worker looks for idle flows this often
+    static final long EVICTION_INTERVAL_MILLIS = 1000;
+    // counted by all forwarding threads and reported every stats_interval seconds
+    private LinkStats data_stats = new LinkStats("data");
+    private LinkStats ack_stats = new LinkStats("ack");
+    private int stats_interval;
+    // a line per dropped or corrupted packet
+    private boolean verbose;
+
+    private InetSocketAddress receiver_addr;
+    private float data_corrupt_rate;
+    private float data_loss_rate;
+    private float ack_corrupt_rate;
+    private float ack_loss_rate;
+    private int min_propagation_delay;
+    private int max_propagation_delay;
+    // loss and corruption rates of particular flows, by their number in the
+    // order the flows started, which is also their number in a trace
+    private Map<Integer, float[]> flow_settings = new HashMap<>();
+    // every sender is a flow of its own, identified by its address
+    private Map<InetSocketAddress, Flow> flows = new ConcurrentHashMap<>();
+    private AtomicLong flow_count = new AtomicLong();
+
+    // the links of both directions are shared by all flows
+    private DelayLine data_delay = new DelayLine(max_packet_size + 1);
+    private DelayLine ack_delay = new DelayLine(max_packet_size + 1);
+    // null if the link is not rate limited
+    private Bottleneck data_bottleneck;
+    private Bottleneck ack_bottleneck;
+    private AckWorker[] ack_workers;
+    // bursty loss instead of the uniform loss rate, null if not used
+    private GilbertElliott data_burst;
+    private GilbertElliott ack_burst;
+    // every packet is recorded if there is a trace, and the decisions
+    // come from the replayed trace if there is one
+    private long started_at = System.nanoTime();
+    private PacketTrace trace;
+    private TraceReplay replay;
+
+    // drops and corrupts the packets of one direction of one flow
+    public class Impairment {
+        private int flow_id;
+        private byte direction;
         private float corrupt_rate;
         private int corruptionCounter = 0;
         private float drop_rate;
         private int dropCounter = 0;
+        private GilbertElliott burst;
+        private TraceReplay.Decisions replayed;
         private Random random;
         private Random rnd_byte;
-        private boolean ack_stream;
-        
-        public Forwarder(DatagramSocket source, 
-                         DatagramSocket dst_socket, String dst_host, int dst_port,
-                         float corrupt_rate, float drop_rate,
-                         int min_propagation_delay, int max_propagation_delay,
-                         long seed, boolean ack_stream) throws UnknownHostException {
-            this.source = source;
-            this.dst_socket = dst_socket;
-            this.dst_addr = InetAddress.getByName(dst_host);
-            this.dst_port = dst_port;
+        // propagation delay of the last packet not dropped
+        private int delay_us;
+
+        public Impairment(int flow_id, byte direction, float corrupt_rate, float drop_rate,
+                          GilbertElliott burst, long seed) {
+            this.flow_id = flow_id;
+            this.direction = direction;
             this.corrupt_rate = corrupt_rate;
             this.drop_rate = drop_rate;
-            this.min_propagation_delay = min_propagation_delay;
-            this.max_propagation_delay = max_propagation_delay;
+            this.burst = burst == null ? null : burst.copy();
+            this.replayed = replay == null ? null : replay.get(flow_id, direction);
             this.random = new Random(seed);
             this.rnd_byte = new Random(seed);
-            this.ack_stream = ack_stream;
         }
-        
+
+        // returns the PacketTrace flags of the packet, and sets delay_us unless it is dropped
+        public int apply(byte[] data, int length) {
+            boolean drop, corrupt;
+            if (replayed != null && replayed.advance()) {
+                drop = replayed.isDropped();
+                corrupt = !drop && replayed.isCorrupted();
+                delay_us = replayed.getDelayMicros();
+            } else {
+                // decide if to drop the packet or not
+                drop = burst != null ? burst.lose(random) : random.nextFloat() <= drop_rate;
+                // decide if to corrupt the packet or not
+                corrupt = !drop && random.nextFloat() <= corrupt_rate;
+                // add some propagation delay
+                if (!drop) {
+                    delay_us = 1000 * (min_propagation_delay + random.nextInt(max_propagation_delay - min_propagation_delay + 1));
+                }
+            }
+
+            if (drop) {
+                dropCounter++;
+                if (verbose) {
+                    System.out.println(dropCounter + " packet(s) dropped");
+                }
+                return PacketTrace.DROPPED;
+            }
+            if (corrupt) {
+                for (int i = 0; i < length; ++i)
+                    // we have an extra random number generator for the corruption since the packet
+                    // length might be different between submissions
+                    if (i == 0 || rnd_byte.nextFloat() <= 0.3)  //decide if to corrupt a byte
+                        data[i] = (byte) ((data[i] + 1) % 10);
+                corruptionCounter++;
+                if (verbose) {
+                    System.out.println(corruptionCounter + " packet(s) corrupted");
+                }
+                return PacketTrace.CORRUPTED;
+            }
+            return 0;
+        }
+    }
+
+    // one sender and the socket that talks to the receiver on its behalf, so
+    // that the receiver sees every sender as a peer of its own and its ACKs
+    // find the way back
+    public class Flow {
+        private InetSocketAddress sender_addr;
+        // where the packets of the sender come in and its ACKs go out
+        private DatagramChannel sender_channel;
+        private DatagramChannel receiver_channel;
+        private Impairment data;
+        private Impairment ack;
+        private volatile long last_seen = System.nanoTime();
+
+        public Flow(InetSocketAddress sender_addr, DatagramChannel sender_channel, long seed) throws IOException {
+            this.sender_addr = sender_addr;
+            this.sender_channel = sender_channel;
+            float[] rates = flow_settings.getOrDefault((int) seed, new float[] {
+                data_corrupt_rate, data_loss_rate, ack_corrupt_rate, ack_loss_rate});
+            this.data = new Impairment((int) seed, PacketTrace.DATA, rates[0], rates[1], data_burst, seed);
+            this.ack = new Impairment((int) seed, PacketTrace.ACK, rates[2], rates[3], ack_burst, seed);
+            // not connected: a connected channel fails with PortUnreachableException
+            // while the receiver is not up, an unconnected one just loses the packet
+            this.receiver_channel = DatagramChannel.open();
+            receiver_channel.bind(null);
+            receiver_channel.configureBlocking(false);
+        }
+    }
+
+    // forwards the data of the senders whose packets arrive at its socket
+    public class DataWorker extends Thread {
+        private DatagramChannel source;
+
+        public DataWorker(DatagramChannel source) {
+            this.source = source;
+        }
+
         public void run() {
             try {
-                byte[] data = new byte[max_packet_size];
-                DatagramPacket packet = new DatagramPacket(data, data.length);
-                
                 while (true) {
                     // read data from the incoming socket
-                    source.receive(packet);
-                    total_forwarded += packet.getLength();
-                    
+                    ByteBuffer data = data_delay.takeBuffer();
+                    InetSocketAddress sender_addr = (InetSocketAddress) source.receive(data);
+                    int length = data.position();
+
                     // check the length of the packet
-                    if (packet.getLength() > max_packet_size) {
+                    if (length > max_packet_size) {
                         System.err.println("Error: packet length is more than " + max_packet_size + " bytes");
                         System.exit(-1);
                     }
-                    
-                    // decide if to drop the packet or not
-                    if (random.nextFloat() <= drop_rate) {
-                        dropCounter++;
-                        System.out.println(dropCounter + " packet(s) dropped");
-                        continue;
+
+                    Flow flow = flows.get(sender_addr);
+                    if (flow == null) {
+                        flow = newFlow(sender_addr, source);
                     }
-                    
-                    // decide if to corrupt the packet or not
-                    if (random.nextFloat() <= corrupt_rate) {
-                        for (int i = 0; i < packet.getLength(); ++i)
-                            // we have an extra random number generator for the corruption since the packet
-                            // length might be different between submissions
-                            if (i == 0 || rnd_byte.nextFloat() <= 0.3)  //decide if to corrupt a byte
-                                data[i] = (byte) ((data[i] + 1) % 10);
-                        corruptionCounter++;
-                        System.out.println(corruptionCounter + " packet(s) corrupted");
+                    flow.last_seen = System.nanoTime();
+                    forward(flow.data, data, data_stats, data_bottleneck, data_delay, flow.receiver_channel, receiver_addr);
+                }
+
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+    }
+
+    // forwards the ACKs of the flows assigned to it back to their senders
+    public class AckWorker extends Thread {
+        private Selector selector;
+        private Queue<Flow> new_flows = new ConcurrentLinkedQueue<>();
+
+        public AckWorker() throws IOException {
+            selector = Selector.open();
+        }
+
+        public void add(Flow flow) {
+            new_flows.add(flow);
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                long last_eviction = System.nanoTime();
+                while (true) {
+                    selector.select(EVICTION_INTERVAL_MILLIS);
+                    Flow flow;
+                    while ((flow = new_flows.poll()) != null) {
+                        flow.receiver_channel.register(selector, SelectionKey.OP_READ, flow);
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        flow = (Flow) key.attachment();
+                        while (true) {
+                            ByteBuffer data = ack_delay.takeBuffer();
+                            if (flow.receiver_channel.receive(data) == null) {
+                                ack_delay.returnBuffer(data);
+                                break;
+                            }
+                            flow.last_seen = System.nanoTime();
+                            forward(flow.ack, data, ack_stats, ack_bottleneck, ack_delay, flow.sender_channel, flow.sender_addr);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    long now = System.nanoTime();
+                    if (now - last_eviction >= EVICTION_INTERVAL_MILLIS * 1000000L) {
+                        evictIdleFlows(selector, now);
+                        last_eviction = now;
                     }
-                    
-                    // This is a bit hackish but o well...
-                    // In the second thread (the one that forwards the ACKS)
-                    // we need to know the source port from the packets
-                    if (!ack_stream)
-                      returnPort = packet.getPort();
-                    else 
-                      dst_port = returnPort;
-                    // add some propagation delay
-                    int delay = min_propagation_delay + random.nextInt(max_propagation_delay - min_propagation_delay + 1);
-                    Thread.sleep(delay);
-                    // send the data
-                    dst_socket.send(new DatagramPacket(data, packet.getLength(), dst_addr, dst_port));
                 }
-                
             } catch (Exception e) {
                 e.printStackTrace();
                 System.exit(-1);
             }
         }
     }
-    
+
+    // drops the flows of this worker that have been quiet for IDLE_TIMEOUT_MILLIS
+    // and closes their sockets, a packet still on its way through them is lost
+    private void evictIdleFlows(Selector selector, long now) throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            Flow flow = (Flow) key.attachment();
+            if (now - flow.last_seen >= IDLE_TIMEOUT_MILLIS * 1000000L && flows.remove(flow.sender_addr, flow)) {
+                key.cancel();
+                flow.receiver_channel.close();
+            }
+        }
+    }
+
+    private Flow newFlow(InetSocketAddress sender_addr, DatagramChannel sender_channel) throws IOException {
+        // the first flow gets seed 0, as the single sender always did
+        long seed = flow_count.getAndIncrement();
+        Flow flow = new Flow(sender_addr, sender_channel, seed);
+        Flow existing = flows.putIfAbsent(sender_addr, flow);
+        if (existing != null) {
+            flow.receiver_channel.close();
+            return existing;
+        }
+        ack_workers[(int) (seed % ack_workers.length)].add(flow);
+        return flow;
+    }
+
+    // impairs a packet, queues it at the bottleneck and hands it to the delay line
+    private void forward(Impairment impairment, ByteBuffer data, LinkStats stats, Bottleneck bottleneck,
+                         DelayLine delay_line, DatagramChannel channel, SocketAddress dst) throws IOException {
+        long now = System.nanoTime();
+        data.flip();
+        int length = data.limit();
+        stats.arrived(length);
+        int flags;
+        int delay_us;
+        // a flow direction is served by one thread, but there is no harm in making sure
+        synchronized (impairment) {
+            flags = impairment.apply(data.array(), length);
+            delay_us = impairment.delay_us;
+        }
+        // queue at the bottleneck, a full queue drops the packet
+        long queueing = 0;
+        if ((flags & PacketTrace.DROPPED) == 0 && bottleneck != null) {
+            long departure = bottleneck.admit(length, now);
+            if (departure < 0) {
+                flags |= PacketTrace.QUEUE_DROPPED;
+            } else {
+                queueing = departure - now;
+            }
+        }
+        if (trace != null) {
+            trace.record(now, impairment.flow_id, impairment.direction, length, flags,
+                         (flags & PacketTrace.DROPPED) == 0 ? delay_us : 0, (int) (queueing / 1000));
+        }
+        if ((flags & PacketTrace.DROPPED) != 0) {
+            stats.dropped();
+            delay_line.returnBuffer(data);
+            return;
+        }
+        if ((flags & PacketTrace.CORRUPTED) != 0) {
+            stats.corrupted();
+        }
+        if ((flags & PacketTrace.QUEUE_DROPPED) != 0) {
+            stats.queueDropped();
+            delay_line.returnBuffer(data);
+            return;
+        }
+        // the delay line sends the data when it is due and the buffer is its own from now on
+        long departure = delay_line.schedule(channel, data, dst, queueing + delay_us * 1000L);
+        stats.forwarded(length, (departure - now) / 1000);
+    }
+
     public UnreliNET(float data_corrupt_rate, float data_loss_rate,
-                     float ack_corrupt_rate, float ack_loss_rate, 
+                     float ack_corrupt_rate, float ack_loss_rate,
                      int min_propagation_delay, int max_propagation_delay,
+                     long rate, int queue_size, boolean red,
+                     int threads, String flow_file,
+                     GilbertElliott data_burst, GilbertElliott ack_burst,
+                     String record_file, String replay_file,
+                     int stats_interval, int stats_port, boolean verbose,
                      int unreliNetPort, String rcvHost, int rcvPort) {
-        
+
         System.out.println("unreliNetPort = " + unreliNetPort
-                               + "\nrcvHost = " + rcvHost 
-                               + "\nrcvPort = " + rcvPort 
+                               + "\nrcvHost = " + rcvHost
+                               + "\nrcvPort = " + rcvPort
                                + "\ndata corruption rate = " + data_corrupt_rate
                                + "\nack/nak corruption rate = " + ack_corrupt_rate
                                + "\ndata loss rate = " + data_loss_rate
                                + "\nack/nak loss rate = " + ack_loss_rate
                                + "\nmin propagation delay = " + min_propagation_delay
                                + "\nmax propagation delay = " + max_propagation_delay
+                               + "\nrate = " + (rate > 0 ? rate + " bytes/s, queue " + queue_size + " packets" + (red ? " with RED" : "") : "unlimited")
+                               + "\nthreads = " + threads
+                               + (data_burst != null ? "\ndata loss = " + data_burst : "")
+                               + (ack_burst != null ? "\nack/nak loss = " + ack_burst : "")
                                );
-                               
+
+        this.data_corrupt_rate = data_corrupt_rate;
+        this.data_loss_rate = data_loss_rate;
+        this.ack_corrupt_rate = ack_corrupt_rate;
+        this.ack_loss_rate = ack_loss_rate;
+        this.min_propagation_delay = min_propagation_delay;
+        this.max_propagation_delay = max_propagation_delay;
+        this.data_burst = data_burst;
+        this.ack_burst = ack_burst;
+        this.stats_interval = stats_interval;
+        this.verbose = verbose;
+        if (rate > 0) {
+            // each direction has a bottleneck of its own
+            data_bottleneck = new Bottleneck(rate, max_packet_size, queue_size, red, 0);
+            ack_bottleneck = new Bottleneck(rate, max_packet_size, queue_size, red, 0);
+        }
+
         Runtime.getRuntime().addShutdownHook(new Thread() {
-            public void run() { System.out.println("Forwarded " + total_forwarded + " bytes"); }
+            public void run() {
+                System.out.print(summary());
+                if (data_bottleneck != null) {
+                    System.out.println("Data bottleneck: " + data_bottleneck);
+                    System.out.println("ACK bottleneck: " + ack_bottleneck);
+                }
+                if (trace != null) {
+                    try {
+                        System.out.println("Recorded " + trace.close() + " packets to " + record_file);
+                    } catch (IOException e) {
+                        System.err.println("Error: could not write " + record_file + ": " + e.getMessage());
+                    }
+                }
+            }
         });
-        
+
         try {
-            DatagramSocket sender = new DatagramSocket(unreliNetPort);
-            DatagramSocket receiver = new DatagramSocket();
-            
-            // create threads to process sender's incoming data
-            Forwarder th1 = new Forwarder(sender, receiver, rcvHost, rcvPort,
-                                          data_corrupt_rate, data_loss_rate,
-                                          min_propagation_delay, max_propagation_delay,
-                                          0, false);
-            th1.start();
-            
-            // create threads to process receiver's incoming data
-            Forwarder th2 = new Forwarder(receiver, sender, "localhost", returnPort,
-                                          ack_corrupt_rate, ack_loss_rate,
-                                          min_propagation_delay, max_propagation_delay,
-                                          0, true);
-            th2.start();
+            receiver_addr = new InetSocketAddress(InetAddress.getByName(rcvHost), rcvPort);
+            if (flow_file != null) {
+                readFlowSettings(flow_file);
+            }
+            if (replay_file != null) {
+                replay = new TraceReplay(replay_file);
+                System.out.println("Replaying " + replay + " from " + replay_file);
+            }
+            if (record_file != null) {
+                trace = new PacketTrace(record_file, started_at);
+            }
+            data_delay.start();
+            ack_delay.start();
+            if (stats_interval > 0) {
+                new StatsReporter().start();
+            }
+            if (stats_port > 0) {
+                new StatsServer(stats_port).start();
+            }
+
+            // create threads to process the receiver's ACKs
+            ack_workers = new AckWorker[threads];
+            for (int i = 0; i < threads; i++) {
+                ack_workers[i] = new AckWorker();
+                ack_workers[i].start();
+            }
+
+            // create threads to process the senders' data, each with a socket
+            // of its own on the same port and the kernel spreading the senders
+            for (int i = 0; i < threads; i++) {
+                DatagramChannel sender = DatagramChannel.open();
+                if (threads > 1) {
+                    sender.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                sender.bind(new InetSocketAddress(unreliNetPort));
+                new DataWorker(sender).start();
+            }
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(-1);
         }
     }
-    
+
+    // prints the statistics of both directions every stats_interval seconds
+    // in which packets arrived
+    public class StatsReporter extends Thread {
+        public StatsReporter() {
+            setDaemon(true);
+        }
+
+        public void run() {
+            LinkStats.Snapshot data_before = new LinkStats.Snapshot(started_at);
+            LinkStats.Snapshot ack_before = new LinkStats.Snapshot(started_at);
+            try {
+                while (true) {
+                    Thread.sleep(stats_interval * 1000L);
+                    LinkStats.Snapshot data_now = data_stats.snapshot();
+                    LinkStats.Snapshot ack_now = ack_stats.snapshot();
+                    if (data_now.arrived != data_before.arrived || ack_now.arrived != ack_before.arrived) {
+                        String time = String.format("[%.1f s] ", (data_now.time - started_at) / 1e9);
+                        System.out.println(time + data_stats.report(data_now, data_before)
+                                           + "\n" + time + ack_stats.report(ack_now, ack_before));
+                    }
+                    data_before = data_now;
+                    ack_before = ack_now;
+                }
+            } catch (InterruptedException e) {
+                // done
+            }
+        }
+    }
+
+    // answers every connection to the stats port with the statistics since the start
+    public class StatsServer extends Thread {
+        private ServerSocket server;
+
+        public StatsServer(int port) throws IOException {
+            server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                try (Socket client = server.accept()) {
+                    Writer out = new OutputStreamWriter(client.getOutputStream());
+                    out.write(summary());
+                    out.flush();
+                } catch (IOException e) {
+                    System.err.println("Error: stats port: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // statistics of both directions since the start
+    private String summary() {
+        LinkStats.Snapshot data_now = data_stats.snapshot();
+        LinkStats.Snapshot ack_now = ack_stats.snapshot();
+        return "Forwarded " + (data_now.arrivedBytes + ack_now.arrivedBytes) + " bytes in " + flow_count.get() + " flow(s)\n"
+            + data_stats.report(data_now, new LinkStats.Snapshot(started_at)) + "\n"
+            + ack_stats.report(ack_now, new LinkStats.Snapshot(started_at)) + "\n";
+    }
+
+    // lines of <flow number> <P_DATA_CORRUPT> <P_DATA_LOSS> <P_ACK_CORRUPT> <P_ACK_LOSS>
+    private void readFlowSettings(String flow_file) throws IOException {
+        for (String line : Files.readAllLines(Paths.get(flow_file))) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length != 5) {
+                throw new IOException("Bad line in " + flow_file + ": " + line);
+            }
+            flow_settings.put(Integer.parseInt(fields[0]), new float[] {
+                Float.parseFloat(fields[1]), Float.parseFloat(fields[2]),
+                Float.parseFloat(fields[3]), Float.parseFloat(fields[4])});
+        }
+    }
+
     public static void main(String[] args) {
         // parse parameters
-        if (args.length != 6) {
-            System.err.println("Usage: java UnreliNET <P_DATA_CORRUPT> <P_DATA_LOSS> " +
-                               "<P_ACK_CORRUPT> <P_ACK_LOSS> " +
-                               "<unreliNetPort> <rcvPort>");
-            System.exit(-1);
-        } else {
-            new UnreliNET(Float.parseFloat(args[0]), Float.parseFloat(args[1]),
-                          Float.parseFloat(args[2]), Float.parseFloat(args[3]),
-                          0, 0,
-                          Integer.parseInt(args[4]), "localhost", Integer.parseInt(args[5]) );
+        if (args.length < 6 || args.length % 2 != 0) {
+            usage();
         }
+        // propagation delay in ms
+        int min_propagation_delay = 0;
+        int max_propagation_delay = 0;
+        // bottleneck, 0 for an unlimited link
+        long rate = 0;
+        int queue_size = 100;
+        boolean red = false;
+        int threads = 1;
+        String flow_file = null;
+        GilbertElliott data_burst = null;
+        GilbertElliott ack_burst = null;
+        String record_file = null;
+        String replay_file = null;
+        // seconds between two reports, 0 for none
+        int stats_interval = 1;
+        int stats_port = 0;
+        boolean verbose = false;
+        for (int i = 6; i < args.length; i += 2) {
+            if (args[i].equals("-minDelay")) {
+                min_propagation_delay = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-maxDelay")) {
+                max_propagation_delay = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-rate")) {
+                // kbit/s
+                rate = Long.parseLong(args[i + 1]) * 1000 / 8;
+            } else if (args[i].equals("-queue")) {
+                queue_size = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-aqm") && (args[i + 1].equals("droptail") || args[i + 1].equals("red"))) {
+                red = args[i + 1].equals("red");
+            } else if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-flows")) {
+                flow_file = args[i + 1];
+            } else if (args[i].equals("-gilbert")) {
+                data_burst = GilbertElliott.parse(args[i + 1]);
+            } else if (args[i].equals("-ackGilbert")) {
+                ack_burst = GilbertElliott.parse(args[i + 1]);
+            } else if (args[i].equals("-record")) {
+                record_file = args[i + 1];
+            } else if (args[i].equals("-replay")) {
+                replay_file = args[i + 1];
+            } else if (args[i].equals("-stats")) {
+                stats_interval = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-statsPort")) {
+                stats_port = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-verbose") && (args[i + 1].equals("true") || args[i + 1].equals("false"))) {
+                verbose = Boolean.parseBoolean(args[i + 1]);
+            } else {
+                usage();
+            }
+        }
+        max_propagation_delay = Math.max(min_propagation_delay, max_propagation_delay);
+        new UnreliNET(Float.parseFloat(args[0]), Float.parseFloat(args[1]),
+                      Float.parseFloat(args[2]), Float.parseFloat(args[3]),
+                      min_propagation_delay, max_propagation_delay,
+                      rate, queue_size, red,
+                      threads, flow_file,
+                      data_burst, ack_burst,
+                      record_file, replay_file,
+                      stats_interval, stats_port, verbose,
+                      Integer.parseInt(args[4]), "localhost", Integer.parseInt(args[5]) );
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java UnreliNET <P_DATA_CORRUPT> <P_DATA_LOSS> " +
+                           "<P_ACK_CORRUPT> <P_ACK_LOSS> " +
+                           "<unreliNetPort> <rcvPort> [-minDelay <ms>] [-maxDelay <ms>]\n" +
+                           "       [-rate <kbit/s>] [-queue <packets>] [-aqm droptail|red]\n" +
+                           "       [-threads <n>] [-flows <file>]\n" +
+                           "       [-gilbert <p,r,lossGood,lossBad>] [-ackGilbert <p,r,lossGood,lossBad>]\n" +
+                           "       [-record <trace>] [-replay <trace>]\n" +
+                           "       [-stats <seconds>] [-statsPort <port>] [-verbose true|false]");
+        System.exit(-1);
     }
 }
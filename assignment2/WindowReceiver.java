@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receiver side of the window mode, serving any number of senders at once.
+ * Every sender, told apart by its address and port, gets its own reorder
+ * window and statistics in a concurrent map. A sender's state is created
+ * by its first packet, sequence number 0, so a late duplicate cannot start
+ * a transfer over, and evicted once the sender has been quiet for
+ * IDLE_TIMEOUT_MILLIS, or for LINGER_MILLIS after its transfer completed.
+ * With several threads every thread binds its own DatagramChannel to the
+ * port with SO_REUSEPORT and the kernel spreads the senders over them,
+ * always handing the packets of one sender to the same socket. The state
+ * of a sender is still locked while a packet is handled, in case it does
+ * not.
+ */
+class WindowReceiver {
+  // a file transfer ends once the sender has been quiet this long after the last packet
+  static final long LINGER_MILLIS = 2000;
+  // state of a sender that has been quiet this long is dropped
+  static final long IDLE_TIMEOUT_MILLIS = 30000;
+  // every thread looks for idle senders this often
+  static final long EVICTION_INTERVAL_MILLIS = 500;
+  // replaced by the address of the sender in the file name
+  static final String PEER_PLACEHOLDER = "%p";
+
+  private final int windowSize;
+  private final String file;
+  private final Map<InetSocketAddress, Peer> peers = new ConcurrentHashMap<>();
+  // set once the single transfer of a file without placeholder is over
+  private volatile boolean done = false;
+
+  /**
+   * State of one sender
+   */
+  static class Peer {
+    final InetSocketAddress address;
+    final ReceiveWindow window;
+    final FileChannel out;
+    volatile long lastSeen;
+    long startedAt;
+    long finishedAt = 0;
+    long packets = 0;
+    long wireBytes = 0;
+    long fileBytes = 0;
+
+    Peer(InetSocketAddress address, int windowSize, FileChannel out) {
+      this.address = address;
+      this.window = new ReceiveWindow(windowSize);
+      this.out = out;
+      this.startedAt = System.nanoTime();
+      this.lastSeen = startedAt;
+    }
+  }
+
+  /**
+   * @param  windowSize 1 for Go-Back-N, more for Selective Repeat
+   * @param  file the file to write, null to print lines. If it contains
+   *         PEER_PLACEHOLDER every sender gets its own file and the
+   *         receiver runs until it is stopped. Otherwise it takes one
+   *         transfer and returns once that is complete.
+   */
+  public WindowReceiver(int windowSize, String file) {
+    this.windowSize = windowSize;
+    this.file = file;
+  }
+
+  /**
+   * Receives on the port with the given number of threads until done
+   */
+  public void run(int port, int threads) throws IOException, InterruptedException {
+    DatagramChannel[] channels = new DatagramChannel[threads];
+    for(int i = 0; i < threads; i++) {
+      channels[i] = DatagramChannel.open();
+      if(threads > 1) {
+        if(!channels[i].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+          throw new IOException("SO_REUSEPORT is not supported, use a single thread");
+        }
+        channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+      channels[i].bind(new InetSocketAddress(port));
+    }
+    Thread[] workers = new Thread[threads];
+    for(int i = 0; i < threads; i++) {
+      DatagramChannel channel = channels[i];
+      workers[i] = new Thread(() -> {
+        try {
+          receive(channel);
+        } catch(IOException e) {
+          System.err.println("Receiver: " + e.getMessage());
+        }
+      }, "receiver-" + i);
+      workers[i].start();
+    }
+    for(Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  private void receive(DatagramChannel channel) throws IOException {
+    channel.configureBlocking(false);
+    Selector selector = Selector.open();
+    channel.register(selector, SelectionKey.OP_READ);
+    PacketCodec codec = new PacketCodec(true);
+    // lines are copied out of the direct buffers to be printed
+    byte[] line = new byte[PacketCodec.MAX_PAYLOAD_SIZE];
+    long lastEviction = System.nanoTime();
+    while(!done) {
+      selector.select(EVICTION_INTERVAL_MILLIS);
+      selector.selectedKeys().clear();
+      while(true) {
+        ByteBuffer in = codec.receiveBuffer();
+        SocketAddress address = channel.receive(in);
+        if(address == null) {
+          break;
+        }
+        int length = in.position();
+        ByteBuffer packet = codec.decode(length);
+        if(packet == null) {
+          // a corrupted packet says nothing reliable, not even who sent it
+          continue;
+        }
+        Peer peer = getPeer((InetSocketAddress) address, packet.getInt(PacketCodec.SEQUENCE_OFFSET));
+        if(peer == null) {
+          continue;
+        }
+        // answers in the checksum algorithm the sender chose
+        codec.setAlgorithm(codec.getReceivedAlgorithm());
+        synchronized(peer) {
+          handle(peer, packet, length, line);
+          channel.send(codec.encodeAck(peer.window.getCumulativeAck(), peer.window.getSelectiveAcks()), address);
+        }
+      }
+      long now = System.nanoTime();
+      if(now - lastEviction >= EVICTION_INTERVAL_MILLIS * 1000000) {
+        evictIdlePeers(now);
+        lastEviction = now;
+      }
+    }
+    selector.close();
+    channel.close();
+  }
+
+  /**
+   * @return the state of the sender, or null if the packet cannot start a transfer
+   */
+  private Peer getPeer(InetSocketAddress address, int seq) throws IOException {
+    Peer peer = peers.get(address);
+    if(peer != null || seq != 0) {
+      return peer;
+    }
+    FileChannel out = null;
+    if(file != null) {
+      if(!file.contains(PEER_PLACEHOLDER) && !peers.isEmpty()) {
+        // there is only the one file, the sender is ignored and gives up eventually
+        return null;
+      }
+      String name = file.replace(PEER_PLACEHOLDER, address.getAddress().getHostAddress() + "_" + address.getPort());
+      out = FileChannel.open(Paths.get(name), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    Peer created = new Peer(address, windowSize, out);
+    Peer existing = peers.putIfAbsent(address, created);
+    if(existing != null) {
+      // another thread was faster
+      if(out != null) {
+        out.close();
+      }
+      return existing;
+    }
+    return created;
+  }
+
+  private void handle(Peer peer, ByteBuffer packet, int length, byte[] line) throws IOException {
+    peer.lastSeen = System.nanoTime();
+    if(peer.finishedAt == 0) {
+      peer.packets++;
+      peer.wireBytes += length;
+    }
+    peer.window.accept(packet.getInt(PacketCodec.SEQUENCE_OFFSET), packet);
+    ByteBuffer next;
+    while((next = peer.window.poll()) != null) {
+      if(peer.out == null) {
+        int size = next.remaining();
+        next.get(line, 0, size);
+        System.out.println(new String(line, 0, size));
+      } else if(!next.hasRemaining()) {
+        peer.finishedAt = System.nanoTime();
+        peer.out.close();
+        // duplicates are counted in the throughput, not in the goodput
+        double seconds = (peer.finishedAt - peer.startedAt) / 1e9;
+        System.err.printf("Received %d bytes from %s in %d packets in %.3f s, throughput %.3f MB/s, goodput %.3f MB/s%n",
+            peer.fileBytes, peer.address, peer.packets, seconds, peer.wireBytes / seconds / 1e6, peer.fileBytes / seconds / 1e6);
+      } else if(peer.finishedAt == 0) {
+        while(next.hasRemaining()) {
+          peer.fileBytes += peer.out.write(next);
+        }
+      }
+    }
+  }
+
+  private void evictIdlePeers(long now) throws IOException {
+    for(Peer peer : peers.values()) {
+      long quiet = now - peer.lastSeen;
+      boolean finished;
+      synchronized(peer) {
+        finished = peer.finishedAt != 0;
+      }
+      if(quiet < (finished ? LINGER_MILLIS : IDLE_TIMEOUT_MILLIS) * 1000000 || !peers.remove(peer.address, peer)) {
+        continue;
+      }
+      synchronized(peer) {
+        if(!finished && peer.out != null) {
+          System.err.println("Receiver: transfer from " + peer.address + " timed out");
+          peer.out.close();
+        }
+      }
+      if(file != null && !file.contains(PEER_PLACEHOLDER)) {
+        done = true;
+      }
+    }
+  }
+}
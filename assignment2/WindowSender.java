@@ -0,0 +1,354 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pipelined sender for the window mode of Sender, see PacketCodec for the
+ * packet formats. Up to windowSize packets are in flight at the same time.
+ * The cumulative ACK is the next sequence number the receiver expects, and
+ * bit i of the SACK bits says that cumulative ACK + 1 + i arrived out of
+ * order. Sequence numbers are 32 bits and compared with wrap-around
+ * arithmetic. Packets in flight are kept in preallocated direct buffers,
+ * one per slot of the window, so sending does not allocate.
+ * Go-Back-N keeps one timer for the oldest packet and resends the whole
+ * window when it fires. Selective Repeat keeps a timer per packet and only
+ * resends packets that are neither cumulatively nor selectively acked.
+ * The timeout comes from an RttEstimator that is fed by the ACKs of
+ * packets that were sent only once.
+ * With a CongestionControl the packets in flight are further limited to
+ * its congestion window. Packets that do not fit yet are queued in their
+ * slots and go out as ACKs open the window. A loss detected by duplicate
+ * ACKs is repaired by fast retransmit: Selective Repeat resends the oldest
+ * packet, Go-Back-N goes back to it and resends from there.
+ */
+class WindowSender {
+  // the transfer is given up on after the oldest packet timed out this often in a row
+  static final int MAX_RETRANSMISSIONS = 12;
+
+  private final DatagramChannel channel;
+  private final Selector selector;
+  private final int windowSize;
+  private final boolean selectiveRepeat;
+  // packets in flight, indexed by sequence number modulo windowSize
+  private final ByteBuffer[] packets;
+  private final long[] sentAt;
+  private final boolean[] acked;
+  private final int[] transmissions;
+  // oldest unacked sequence number
+  private int base = 0;
+  // next packet to go out, the ones from here to nextSeq are queued
+  private int sendNext = 0;
+  private int nextSeq = 0;
+  // start of the Go-Back-N timer for the packet at base
+  private long timerStart;
+  private final PacketCodec codec = new PacketCodec(true);
+  private final RttEstimator rtt = new RttEstimator();
+  // timeouts of the oldest packet since the window last moved
+  private int timeoutsInARow = 0;
+  // null to keep windowSize packets in flight regardless of losses
+  private CongestionControl congestionControl;
+  private long nextPacketAt = 0;
+
+  private long packetsSent = 0;
+  private long retransmissions = 0;
+  private long payloadBytes = 0;
+  // every byte handed to the socket, headers and retransmissions included
+  private long wireBytes = 0;
+  private final long startedAt = System.nanoTime();
+
+  /**
+   * @param  host host of the receiver (or of UnreliNET in front of it)
+   * @param  port port of the receiver
+   * @param  windowSize packets that may be in flight at the same time
+   * @param  selectiveRepeat true for Selective Repeat, false for Go-Back-N
+   * @param  algorithm checksum algorithm of the packets, see PacketCodec
+   */
+  public WindowSender(String host, int port, int windowSize, boolean selectiveRepeat, int algorithm) throws IOException {
+    codec.setAlgorithm(algorithm);
+    this.windowSize = windowSize;
+    this.selectiveRepeat = selectiveRepeat;
+    packets = new ByteBuffer[windowSize];
+    ByteBuffer slots = ByteBuffer.allocateDirect(windowSize * PacketCodec.MAX_PACKET_SIZE);
+    for(int i = 0; i < windowSize; i++) {
+      slots.limit((i + 1) * PacketCodec.MAX_PACKET_SIZE).position(i * PacketCodec.MAX_PACKET_SIZE);
+      packets[i] = slots.slice();
+    }
+    sentAt = new long[windowSize];
+    acked = new boolean[windowSize];
+    transmissions = new int[windowSize];
+    channel = DatagramChannel.open();
+    channel.connect(new InetSocketAddress(host, port));
+    channel.configureBlocking(false);
+    selector = Selector.open();
+    channel.register(selector, SelectionKey.OP_READ);
+  }
+
+  /**
+   * @param  congestionControl limits the packets in flight, null for none
+   */
+  public void setCongestionControl(CongestionControl congestionControl) {
+    this.congestionControl = congestionControl;
+  }
+
+  /**
+   * Sends a payload in the next packet, waiting for room in the window first
+   * @param  payload at most MAX_PAYLOAD_SIZE bytes
+   */
+  public void send(byte[] payload) throws IOException {
+    send(ByteBuffer.wrap(payload));
+  }
+
+  /**
+   * Sends the remaining bytes of a buffer in the next packet, waiting for
+   * room in the window first. They are copied, the buffer can be reused.
+   * @param  payload at most MAX_PAYLOAD_SIZE bytes
+   */
+  public void send(ByteBuffer payload) throws IOException {
+    if(payload.remaining() > PacketCodec.MAX_PAYLOAD_SIZE) {
+      throw new IllegalArgumentException("Payload of " + payload.remaining() + " bytes does not fit into a packet");
+    }
+    while(nextSeq - base >= windowSize) {
+      waitForAcks();
+    }
+    int slot = Math.floorMod(nextSeq, windowSize);
+    payloadBytes += payload.remaining();
+    codec.encode(packets[slot], nextSeq, payload);
+    acked[slot] = false;
+    transmissions[slot] = 0;
+    nextSeq++;
+    readAcks();
+    handleTimeouts(System.nanoTime());
+    sendQueued();
+  }
+
+  /**
+   * Waits until every packet is acked and prints the statistics.
+   * Throughput counts every byte sent, goodput only the payload delivered.
+   */
+  public void close() throws IOException {
+    while(base != nextSeq) {
+      waitForAcks();
+    }
+    double seconds = (System.nanoTime() - startedAt) / 1e9;
+    System.err.printf("Sent %d packets (%d retransmissions), %d payload bytes in %.3f s, srtt %.3f ms, rto %.3f ms%n",
+        packetsSent, retransmissions, payloadBytes, seconds, rtt.getSrtt() / 1e6, rtt.getRto() / 1e6);
+    System.err.printf("Throughput %.3f MB/s, goodput %.3f MB/s%n", wireBytes / seconds / 1e6, payloadBytes / seconds / 1e6);
+    if(congestionControl != null) {
+      System.err.println("Congestion control: " + congestionControl);
+      congestionControl.close();
+    }
+    selector.close();
+    channel.close();
+  }
+
+  /**
+   * @return packets that may be in flight now
+   */
+  private int getWindow() {
+    if(congestionControl == null) {
+      return windowSize;
+    }
+    return Math.max(1, Math.min(windowSize, congestionControl.getWindow()));
+  }
+
+  /**
+   * Sends queued packets as far as the window and the pacing allow
+   */
+  private void sendQueued() throws IOException {
+    while(sendNext != nextSeq && sendNext - base < getWindow()) {
+      long now = System.nanoTime();
+      long interval = congestionControl == null ? 0 : congestionControl.getPacingIntervalNanos(rtt.getSrtt());
+      if(interval > 0) {
+        if(now < nextPacketAt) {
+          return;
+        }
+        nextPacketAt = now + interval;
+      }
+      int slot = Math.floorMod(sendNext, windowSize);
+      if(sendNext == base) {
+        timerStart = now;
+      }
+      if(transmissions[slot] > 0) {
+        retransmissions++;
+      }
+      transmit(slot);
+      sendNext++;
+    }
+  }
+
+  private void transmit(int slot) throws IOException {
+    ByteBuffer packet = packets[slot];
+    packet.rewind();
+    // a packet the socket does not take is lost like any other and sent again later
+    try {
+      channel.write(packet);
+    } catch(PortUnreachableException e) {
+      // an earlier packet found nobody listening, the retransmission timer resends
+    }
+    sentAt[slot] = System.nanoTime();
+    transmissions[slot]++;
+    packetsSent++;
+    wireBytes += packet.limit();
+  }
+
+  /**
+   * Blocks until an ACK arrives or the next timer fires, then handles both
+   */
+  private void waitForAcks() throws IOException {
+    long wait = nextDeadline() - System.nanoTime();
+    if(wait >= 1000000) {
+      selector.select(wait / 1000000);
+      selector.selectedKeys().clear();
+    } else if(wait > 0) {
+      // pacing intervals are often shorter than select can wait
+      LockSupport.parkNanos(wait);
+    }
+    readAcks();
+    handleTimeouts(System.nanoTime());
+    sendQueued();
+  }
+
+  private void readAcks() throws IOException {
+    while(true) {
+      ByteBuffer in = codec.receiveBuffer();
+      try {
+        if(channel.receive(in) == null) {
+          return;
+        }
+      } catch(PortUnreachableException e) {
+        // nobody listens yet, the timers take care of it
+        return;
+      }
+      ByteBuffer ack = in.position() == PacketCodec.ACK_SIZE ? codec.decode(PacketCodec.ACK_SIZE) : null;
+      if(ack != null) {
+        onAck(ack.getInt(PacketCodec.SEQUENCE_OFFSET), ack.getInt(PacketCodec.HEADER_SIZE));
+      }
+    }
+  }
+
+  /**
+   * @param  cumulativeAck the next sequence number the receiver expects
+   * @param  selectiveAcks bit i set if cumulativeAck + 1 + i was received
+   */
+  private void onAck(int cumulativeAck, int selectiveAcks) throws IOException {
+    long now = System.nanoTime();
+    // the newest packet this ACK covers for the first time, it most likely triggered the ACK
+    int newest = -1;
+    boolean newlyAcked = false;
+    if(cumulativeAck - base > 0 && cumulativeAck - nextSeq <= 0) {
+      for(int seq = base; seq != cumulativeAck; seq++) {
+        int slot = Math.floorMod(seq, windowSize);
+        if(!acked[slot]) {
+          newest = seq;
+          newlyAcked = true;
+        }
+      }
+      int newlyCumulative = cumulativeAck - base;
+      base = cumulativeAck;
+      if(sendNext - base < 0) {
+        // Go-Back-N went back further than the receiver needed
+        sendNext = base;
+      }
+      timerStart = now;
+      rtt.resetBackoff();
+      timeoutsInARow = 0;
+      if(congestionControl != null && congestionControl.onNewAck(newlyCumulative, cumulativeAck, sendNext - base)
+         && selectiveRepeat && base != sendNext) {
+        // a partial ACK in recovery, the packet at the new base is lost too
+        transmit(Math.floorMod(base, windowSize));
+        retransmissions++;
+      }
+    } else if(cumulativeAck == base && base != sendNext && congestionControl != null
+              && congestionControl.onDuplicateAck(sendNext, sendNext - base)) {
+      if(selectiveRepeat) {
+        transmit(Math.floorMod(base, windowSize));
+        retransmissions++;
+      } else {
+        sendNext = base;
+      }
+    }
+    if(selectiveRepeat) {
+      for(int i = 0; i < PacketCodec.SACK_BITS; i++) {
+        int seq = cumulativeAck + 1 + i;
+        int slot = Math.floorMod(seq, windowSize);
+        if((selectiveAcks & (1 << i)) != 0 && seq - base >= 0 && seq - nextSeq < 0 && !acked[slot]) {
+          acked[slot] = true;
+          newest = seq;
+          newlyAcked = true;
+        }
+      }
+    }
+    // Karn's rule: only packets that were sent once give a usable sample
+    if(newlyAcked && transmissions[Math.floorMod(newest, windowSize)] == 1) {
+      rtt.sample(now - sentAt[Math.floorMod(newest, windowSize)]);
+    }
+  }
+
+  private void handleTimeouts(long now) throws IOException {
+    if(base == sendNext) {
+      return;
+    }
+    long rto = rtt.getRto();
+    if(!selectiveRepeat) {
+      if(now - timerStart >= rto) {
+        baseTimedOut();
+        // go back, sendQueued resends as much as the window allows
+        sendNext = base;
+      }
+      return;
+    }
+    for(int seq = base; seq != sendNext; seq++) {
+      int slot = Math.floorMod(seq, windowSize);
+      if(!acked[slot] && now - sentAt[slot] >= rto) {
+        // the timers of the other packets expire one after another, so
+        // only the one that holds up the window backs the timeout off
+        if(seq == base) {
+          baseTimedOut();
+        }
+        transmit(slot);
+        retransmissions++;
+      }
+    }
+  }
+
+  private void baseTimedOut() throws IOException {
+    if(++timeoutsInARow > MAX_RETRANSMISSIONS) {
+      throw new IOException("No ACK after " + MAX_RETRANSMISSIONS + " retransmissions");
+    }
+    rtt.backOff();
+    if(congestionControl != null) {
+      congestionControl.onTimeout(sendNext - base);
+    }
+  }
+
+  /**
+   * @return the time the next retransmission timer fires, or the next
+   *         queued packet may go out
+   */
+  private long nextDeadline() {
+    long rto = rtt.getRto();
+    long deadline = Long.MAX_VALUE;
+    if(sendNext != nextSeq && sendNext - base < getWindow()) {
+      deadline = nextPacketAt;
+    }
+    if(base == sendNext) {
+      return Math.min(deadline, System.nanoTime() + rto);
+    }
+    if(!selectiveRepeat) {
+      return Math.min(deadline, timerStart + rto);
+    }
+    long earliest = deadline;
+    for(int seq = base; seq != sendNext; seq++) {
+      int slot = Math.floorMod(seq, windowSize);
+      if(!acked[slot]) {
+        earliest = Math.min(earliest, sentAt[slot] + rto);
+      }
+    }
+    return earliest == Long.MAX_VALUE ? System.nanoTime() + rto : earliest;
+  }
+}